@@ -1,5 +1,10 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +16,28 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the given buffer to the decoding process.
+     * the buffer is consumed up to its limit, bytes of an incomplete message
+     * are kept by the decoder until the next call.
+     *
+     * @param buffer the bytes to consider, read from its position to its limit
+     * @return the messages completed by these bytes in order, or an empty list
+     */
+    default List<T> decode(ByteBuffer buffer) {
+        List<T> messages = Collections.emptyList();
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                if (messages.isEmpty()) {
+                    messages = new ArrayList<>(2);
+                }
+                messages.add(nextMessage);
+            }
+        }
+        return messages;
+    }
+
     /**
      * encodes the given message to bytes array
      *
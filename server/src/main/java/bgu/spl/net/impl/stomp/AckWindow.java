@@ -0,0 +1,332 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.OutboundFrame;
+import bgu.spl.net.srv.SlowConsumerPolicy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The messages of one client or client-individual subscription that were sent and not acknowledged yet.
+ * At most window messages are in flight, the others wait in order until acknowledgements make room,
+ * which is also how a subscriber that acknowledges slowly slows its publishers down.
+ * In-flight messages are kept in a ring indexed by their sequence number (the ack id is "subscription-sequence"),
+ * so acknowledging one is O(1); the ring has some slack for messages acknowledged out of order.
+ */
+class AckWindow<T> {
+
+    static final int DEFAULT_WINDOW = 100;
+    private static final int MAX_DELIVERIES = 5; // A message nacked that many times is given up on
+    private static final int MAX_WAITING = 10000; // Past it the subscriber is treated as a slow consumer
+
+    private final ConnectionHandler<T> handler;
+    private final String destination; // What was subscribed to, may be a pattern
+    private final int subscriptionId;
+    private final int window;
+    private final boolean cumulative; // client mode: acknowledging a message acknowledges every earlier one
+    private final Runnable onRoom; // Run when acknowledgements make room and nothing waits for it, may be null
+    private final String[] channels; // In-flight ring, by sequence & mask
+    private final SharedMessageFrame[] frames;
+    private final byte[] deliveries;
+    private final int mask;
+    private long oldest = 0; // Sequence of the oldest slot still in use
+    private long next = 0; // Sequence the next delivery gets
+    private int inFlight = 0;
+    private final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+    private final List<Runnable> whenRoom = new ArrayList<>();
+    private final Set<ConnectionHandler<?>> heldPublishers = new LinkedHashSet<>();
+    private boolean closed = false;
+
+    /**
+     * @param onRoom run whenever acknowledgements leave room for more messages, null if nobody needs to know
+     */
+    AckWindow(ConnectionHandler<T> handler, String destination, int subscriptionId, int window, boolean cumulative,
+              Runnable onRoom) {
+        if (window < 1) {
+            throw new IllegalArgumentException("the window must hold at least one message");
+        }
+        this.handler = handler;
+        this.destination = destination;
+        this.subscriptionId = subscriptionId;
+        this.window = window;
+        this.cumulative = cumulative;
+        this.onRoom = onRoom;
+        int capacity = Integer.highestOneBit(window * 2 - 1) << 1;
+        this.channels = new String[capacity];
+        this.frames = new SharedMessageFrame[capacity];
+        this.deliveries = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    String destination() {
+        return destination;
+    }
+
+    int subscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * Sends the message if the window has room, else keeps it until it has.
+     *
+     * @return false if the subscriber is too slow and the policy says to disconnect it
+     */
+    boolean offer(String channel, SharedMessageFrame frame, SlowConsumerPolicy policy) {
+        return offer(channel, frame, false, policy);
+    }
+
+    /**
+     * @param redelivered the message was already sent to another subscriber, which did not acknowledge it
+     */
+    synchronized boolean offer(String channel, SharedMessageFrame frame, boolean redelivered, SlowConsumerPolicy policy) {
+        int delivered = redelivered ? 1 : 0;
+        if (closed) {
+            return true;
+        }
+        if (!waiting.isEmpty() || !hasRoom()) {
+            if (waiting.size() >= MAX_WAITING) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case DROP_OLDEST:
+                    case CONFLATE: // Everything waiting is on this subscription's channel
+                        waiting.poll();
+                        break;
+                    default:
+                        return true; // DROP_NEWEST
+                }
+            }
+            waiting.add(new Waiting(channel, frame, delivered));
+            return true;
+        }
+        return send(channel, frame, delivered, policy);
+    }
+
+    /**
+     * @return true while messages wait for room, publishers should then be held back
+     */
+    synchronized boolean isBacklogged() {
+        return !waiting.isEmpty();
+    }
+
+    /**
+     * @return true if a message offered now would be sent right away
+     */
+    synchronized boolean hasRoomNow() {
+        return !closed && waiting.isEmpty() && hasRoom();
+    }
+
+    /**
+     * @return the messages sent and not acknowledged yet, plus those waiting for room
+     */
+    synchronized int backlog() {
+        return inFlight + waiting.size();
+    }
+
+    /**
+     * Runs the task once nothing waits for room anymore, right away if nothing does.
+     */
+    void whenRoom(Runnable task) {
+        synchronized (this) {
+            if (!waiting.isEmpty() && !closed) {
+                whenRoom.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Stops reading from the publisher until nothing waits for room anymore.
+     * The caller must make sure the publisher's own acknowledgements are not needed for that, or both would wait forever.
+     */
+    void holdPublisher(ConnectionHandler<?> publisher) {
+        synchronized (this) {
+            if (waiting.isEmpty() || closed || !heldPublishers.add(publisher)) {
+                return;
+            }
+            publisher.suspendReads(); // Under the lock, so it comes before the resume
+        }
+    }
+
+    /**
+     * @return false if no message in flight has that sequence
+     */
+    boolean ack(long sequence) {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (!isInFlight(sequence)) {
+                return false;
+            }
+            if (cumulative) {
+                for (long s = oldest; s <= sequence; s++) {
+                    clear(s);
+                }
+            } else {
+                clear(sequence);
+            }
+            ready = refill();
+        }
+        runAll(ready);
+        return true;
+    }
+
+    /**
+     * Sends the message again (with every earlier one in client mode), unless it was delivered too many times.
+     *
+     * @return false if no message in flight has that sequence
+     */
+    boolean nack(long sequence) {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (!isInFlight(sequence)) {
+                return false;
+            }
+            List<Waiting> again = new ArrayList<>();
+            for (long s = cumulative ? oldest : sequence; s <= sequence; s++) {
+                int slot = (int) (s & mask);
+                if (frames[slot] != null) {
+                    if (deliveries[slot] < MAX_DELIVERIES) {
+                        again.add(new Waiting(channels[slot], frames[slot], deliveries[slot]));
+                    }
+                    clear(s);
+                }
+            }
+            // Before anything that waited, they were sent first the first time
+            for (int i = again.size() - 1; i >= 0; i--) {
+                waiting.addFirst(again.get(i));
+            }
+            ready = refill();
+        }
+        runAll(ready);
+        return true;
+    }
+
+    /**
+     * Stops the window and releases whoever waited on it.
+     *
+     * @return the messages that were not acknowledged, in the order they were first sent
+     */
+    List<SharedMessageFrame> close() {
+        List<SharedMessageFrame> unacknowledged = new ArrayList<>();
+        List<Runnable> ready;
+        synchronized (this) {
+            closed = true;
+            for (long s = oldest; s < next; s++) {
+                SharedMessageFrame frame = frames[(int) (s & mask)];
+                if (frame != null) {
+                    unacknowledged.add(frame);
+                }
+                clear(s);
+            }
+            for (Waiting w : waiting) {
+                unacknowledged.add(w.frame);
+            }
+            waiting.clear();
+            ready = release();
+        }
+        runAll(ready);
+        return unacknowledged;
+    }
+
+    private boolean hasRoom() {
+        return inFlight < window && next - oldest < frames.length;
+    }
+
+    private boolean isInFlight(long sequence) {
+        return sequence >= oldest && sequence < next && frames[(int) (sequence & mask)] != null;
+    }
+
+    // Delivers what waited while there is room, @return the tasks to run once out of the lock
+    private List<Runnable> refill() {
+        while (!waiting.isEmpty() && hasRoom()) {
+            Waiting w = waiting.poll();
+            send(w.channel, w.frame, w.deliveries, SlowConsumerPolicy.DROP_NEWEST);
+        }
+        if (!waiting.isEmpty()) {
+            return null;
+        }
+        List<Runnable> ready = release();
+        if (onRoom != null && hasRoom()) {
+            if (ready == null) {
+                ready = new ArrayList<>(1);
+            }
+            ready.add(onRoom);
+        }
+        return ready;
+    }
+
+    private List<Runnable> release() {
+        if (whenRoom.isEmpty() && heldPublishers.isEmpty()) {
+            return null;
+        }
+        List<Runnable> ready = new ArrayList<>(whenRoom);
+        for (ConnectionHandler<?> publisher : heldPublishers) {
+            ready.add(publisher::resumeReads);
+        }
+        whenRoom.clear();
+        heldPublishers.clear();
+        return ready;
+    }
+
+    private boolean send(String channel, SharedMessageFrame frame, int delivered, SlowConsumerPolicy policy) {
+        long sequence = next++;
+        String ack = "ack:" + subscriptionId + "-" + sequence;
+        OutboundFrame outbound = delivered == 0
+                ? new OutboundFrame(channel, frame.forSubscription(subscriptionId, ack))
+                : new OutboundFrame(channel, frame.forSubscription(subscriptionId, ack, "redelivered:true"));
+        // Dropping other queued frames could drop one in flight, which would then never be acknowledged
+        SlowConsumerPolicy sendPolicy = policy == SlowConsumerPolicy.DISCONNECT ? policy : SlowConsumerPolicy.DROP_NEWEST;
+        if (!handler.sendEncoded(outbound, sendPolicy)) {
+            advanceOldest();
+            return policy != SlowConsumerPolicy.DISCONNECT;
+        }
+        int slot = (int) (sequence & mask);
+        channels[slot] = channel;
+        frames[slot] = frame;
+        deliveries[slot] = (byte) (delivered + 1);
+        inFlight++;
+        return true;
+    }
+
+    private void clear(long sequence) {
+        int slot = (int) (sequence & mask);
+        if (frames[slot] != null) {
+            channels[slot] = null;
+            frames[slot] = null;
+            deliveries[slot] = 0;
+            inFlight--;
+        }
+        advanceOldest();
+    }
+
+    private void advanceOldest() {
+        while (oldest < next && frames[(int) (oldest & mask)] == null) {
+            oldest++;
+        }
+    }
+
+    private static void runAll(List<Runnable> tasks) {
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    private static final class Waiting {
+        private final String channel;
+        private final SharedMessageFrame frame;
+        private final int deliveries;
+
+        private Waiting(String channel, SharedMessageFrame frame, int deliveries) {
+            this.channel = channel;
+            this.frame = frame;
+            this.deliveries = deliveries;
+        }
+    }
+}
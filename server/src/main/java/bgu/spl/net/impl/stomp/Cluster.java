@@ -0,0 +1,637 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links this broker to other nodes over TCP, so the clients of every node get what is published on any of them.
+ * Nodes tell each other which destinations and patterns they have subscribers for, and a message goes once to each
+ * node interested in it, whatever the number of its subscribers there: that node fans it out to them.
+ * Nodes are fully meshed, each dials the peers it is given and accepts the others. When two nodes dial each other,
+ * both keep the link dialed by the node with the smaller id.
+ * The cluster port lets whoever is on a link publish anywhere, so both ends of a link first prove they know the
+ * cluster's secret. Each sends a random challenge, then the dialing node proves itself with an HMAC under the secret
+ * of its role, both challenges and both ids, and only once that checks out does the accepting node answer with its own.
+ * A proof is good for that one link only, and a dialer without the secret gets no proof out of the accepting node.
+ * Each direction of the link then has its own key, an HMAC of the same under the secret, and every frame is followed
+ * by an HMAC of it and its sequence number under that key: a frame injected, replayed, dropped or reordered on the way
+ * fails the link before anything in it is used.
+ * The secret never goes over the wire, but the links are not encrypted, they belong on a trusted network.
+ * Each node also has a number, different on every node, that keeps the message ids it gives apart from the others':
+ * a forwarded message keeps its id. A link to a node with the same number is refused.
+ * A link's writer takes whatever is waiting for it, up to a batch, and writes it with one flush,
+ * so under load many messages share a write. Queues (/queue/) stay on their node.
+ * <p>
+ * On a link, a frame is a type followed by the node id, number and a challenge (HELLO), a destination (INTEREST, NO_INTEREST),
+ * or a count of messages, each a destination and the head and tail of a {@link SharedMessageFrame} (MESSAGES).
+ * Destinations and message parts are written as their length and bytes, at most {@value #MAX_PART_BYTES} bytes.
+ * After HELLO, the dialing node sends its proof and the accepting node its own, and every frame that follows ends with
+ * its MAC.
+ */
+public class Cluster {
+
+    private static final byte HELLO = 1;
+    private static final byte INTEREST = 2;
+    private static final byte NO_INTEREST = 3;
+    private static final byte MESSAGES = 4;
+    private static final int MAX_BATCH = 1024; // Frames written with one flush
+    private static final long MAX_QUEUED_BYTES = 64L << 20; // Per link, past it the node misses messages until it catches up
+    private static final long RETRY_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_PART_BYTES = 16 << 20; // Destination, head or tail, past it the link is bad
+    private static final int CHALLENGE_BYTES = 16;
+    private static final int HANDSHAKE_MILLIS = 5000; // A peer that does not prove itself by then is dropped
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    // What the secret is used for, so a proof or key of one kind is never one of another
+    private static final String DIALER_PROOF = "dialer proof";
+    private static final String ACCEPTOR_PROOF = "acceptor proof";
+    private static final String DIALER_KEY = "dialer to acceptor";
+    private static final String ACCEPTOR_KEY = "acceptor to dialer";
+    private static final SecureRandom random = new SecureRandom();
+    private static final Outgoing CLOSE = new Outgoing((byte) 0, null, null); // Wakes a link's writer to stop
+
+    private final String nodeId = Long.toHexString(random.nextLong());
+    private final SecretKeySpec secret;
+    private final int node;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final Map<String, Link> links = new ConcurrentHashMap<>(); // By node id
+    private final Set<String> advertised = new HashSet<>(); // Guarded by this: what the other nodes know we want
+    private volatile BiConsumer<String, SharedMessageFrame> receiver;
+    private volatile Predicate<String> hasSubscribers;
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param port where the other nodes connect to this one
+     * @param node this node's number, from 0 to 32767 and different on every node
+     * @param peers nodes to dial, the others dial us
+     * @param secret shared by every node of the cluster
+     */
+    public Cluster(int port, int node, List<InetSocketAddress> peers, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("a cluster needs a secret");
+        }
+        if (node < 0 || node > MessageIds.MAX_NODE) {
+            throw new IllegalArgumentException("node number " + node + " is not between 0 and " + MessageIds.MAX_NODE);
+        }
+        this.node = node;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.port = port;
+        this.peers = new ArrayList<>(peers);
+    }
+
+    /**
+     * Starts listening and dialing the peers.
+     *
+     * @param receiver delivers a message forwarded by another node to the local subscribers
+     * @param hasSubscribers tells if a destination or pattern has local subscribers
+     */
+    void start(BiConsumer<String, SharedMessageFrame> receiver, Predicate<String> hasSubscribers) {
+        this.receiver = receiver;
+        this.hasSubscribers = hasSubscribers;
+        MessageIds.setNode(node);
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        startThread("cluster-acceptor", this::acceptLoop);
+        for (InetSocketAddress peer : peers) {
+            startThread("cluster-dialer-" + peer, () -> dial(peer));
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Sends the message to every other node with subscribers for it.
+     * One too big for a link stays on this node, the other end would drop the link.
+     */
+    void forward(String destination, SharedMessageFrame frame) {
+        if (!fits(destination) || frame.head().remaining() > MAX_PART_BYTES || frame.tail().remaining() > MAX_PART_BYTES) {
+            return;
+        }
+        for (Link link : links.values()) {
+            if (link.wants(destination)) {
+                link.enqueue(new Outgoing(MESSAGES, destination, frame));
+            }
+        }
+    }
+
+    /**
+     * Tells the other nodes if the destination or pattern now has local subscribers or not. The state is read again
+     * under the lock, so whatever the order calls come in, the last one sent is the current one.
+     * A destination too long for a link is never advertised: every reconnection would fail on it again.
+     */
+    synchronized void interestChanged(String destination) {
+        if (!fits(destination)) {
+            return;
+        }
+        boolean interested = hasSubscribers.test(destination);
+        if (interested ? !advertised.add(destination) : !advertised.remove(destination)) {
+            return;
+        }
+        for (Link link : links.values()) {
+            link.enqueue(new Outgoing(interested ? INTEREST : NO_INTEREST, destination, null));
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                startThread("cluster-link-" + socket.getRemoteSocketAddress(), () -> serve(socket, false));
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void dial(InetSocketAddress peer) {
+        while (running) {
+            String peerId = null;
+            Socket socket = new Socket();
+            try {
+                socket.connect(peer, (int) RETRY_MILLIS);
+                peerId = serve(socket, true);
+            } catch (IOException e) {
+                closeQuietly(socket); // Not up yet, or gone
+            }
+            try {
+                // Also while the node keeps the link it dialed to us instead
+                do {
+                    Thread.sleep(RETRY_MILLIS);
+                } while (running && peerId != null && links.containsKey(peerId));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs a link until it fails or is closed, reading on the calling thread.
+     *
+     * @return the id of the node at the other end, null if it never said
+     */
+    private String serve(Socket socket, boolean dialed) {
+        Link link = null;
+        String peerId = null;
+        try {
+            socket.setTcpNoDelay(true); // The writer batches already
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            out.writeByte(HELLO);
+            out.writeUTF(nodeId);
+            out.writeShort(node);
+            out.write(challenge);
+            out.flush();
+            if (in.readByte() != HELLO) {
+                return null;
+            }
+            peerId = in.readUTF();
+            int peerNode = in.readUnsignedShort();
+            byte[] peerChallenge = new byte[CHALLENGE_BYTES];
+            in.readFully(peerChallenge);
+            if (peerId.equals(nodeId)) {
+                return null; // Dialed ourselves
+            }
+            if (peerNode == node) {
+                System.out.println("Refused cluster link from " + socket.getRemoteSocketAddress() + ": same node number " + node);
+                return null;
+            }
+            byte[] session = dialed
+                    ? session(challenge, peerChallenge, nodeId, peerId, node, peerNode)
+                    : session(peerChallenge, challenge, peerId, nodeId, peerNode, node);
+            // The dialer proves itself first, so the acceptor answers only a node that knows the secret
+            if (dialed) {
+                out.write(hmac(secret, DIALER_PROOF, session));
+                out.flush();
+            }
+            if (!proved(in, hmac(secret, dialed ? ACCEPTOR_PROOF : DIALER_PROOF, session))) {
+                System.out.println("Refused cluster link from " + socket.getRemoteSocketAddress() + ": wrong secret");
+                return null;
+            }
+            if (!dialed) {
+                out.write(hmac(secret, ACCEPTOR_PROOF, session));
+                out.flush();
+            }
+            socket.setSoTimeout(0);
+            Mac sending = keyed(hmac(secret, dialed ? DIALER_KEY : ACCEPTOR_KEY, session));
+            Mac receiving = keyed(hmac(secret, dialed ? ACCEPTOR_KEY : DIALER_KEY, session));
+            link = new Link(peerId, socket, new DataOutputStream(new MacOutputStream(out, sending)), out, sending, dialed);
+            if (register(link)) {
+                read(link, new DataInputStream(new MacInputStream(in, receiving)), in, receiving);
+            }
+        } catch (IOException e) {
+            // The link is down, the dialer tries again
+        } finally {
+            if (link != null) {
+                unregister(link);
+            }
+            closeQuietly(socket);
+        }
+        return peerId;
+    }
+
+    // Everything both ends said in HELLO, dialer first: proofs and keys are bound to it, so they fit no other link
+    private static byte[] session(byte[] dialerChallenge, byte[] acceptorChallenge, String dialerId, String acceptorId,
+                                  int dialerNode, int acceptorNode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream session = new DataOutputStream(bytes);
+        session.write(dialerChallenge);
+        session.write(acceptorChallenge);
+        session.writeUTF(dialerId);
+        session.writeUTF(acceptorId);
+        session.writeShort(dialerNode);
+        session.writeShort(acceptorNode);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] hmac(SecretKeySpec key, String purpose, byte[] session) {
+        Mac mac = keyed(key.getEncoded());
+        mac.update(purpose.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(session);
+    }
+
+    private static Mac keyed(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean proved(DataInputStream in, byte[] expected) throws IOException {
+        byte[] proof = new byte[expected.length];
+        in.readFully(proof);
+        return MessageDigest.isEqual(expected, proof);
+    }
+
+    /**
+     * @return false if a link to the node is kept instead of this one
+     */
+    private synchronized boolean register(Link link) {
+        Link existing = links.get(link.nodeId);
+        if (existing != null && existing.dialedByUs != link.dialedByUs
+                && link.dialedByUs != nodeId.compareTo(link.nodeId) < 0) {
+            return false;
+        }
+        if (existing != null) {
+            existing.close(); // The same way round, it is a reconnection and the old link is dead
+        }
+        links.put(link.nodeId, link);
+        for (String destination : advertised) {
+            link.enqueue(new Outgoing(INTEREST, destination, null));
+        }
+        startThread("cluster-writer-" + link.nodeId, link::writeLoop);
+        return true;
+    }
+
+    private synchronized void unregister(Link link) {
+        links.remove(link.nodeId, link);
+        link.close();
+    }
+
+    /**
+     * Reads frames until the link fails. A frame is used only once its MAC checks out.
+     *
+     * @param in the link's input, fed to the MAC as it is read
+     * @param raw the same input, for the MACs themselves
+     */
+    private void read(Link link, DataInputStream in, DataInputStream raw, Mac mac) throws IOException {
+        List<String> destinations = new ArrayList<>();
+        List<SharedMessageFrame> frames = new ArrayList<>();
+        for (long sequence = 0; ; sequence++) {
+            byte type = in.readByte();
+            switch (type) {
+                case INTEREST:
+                case NO_INTEREST:
+                    String destination = readString(in);
+                    unseal(link, raw, mac, sequence);
+                    link.interested(destination, type == INTEREST);
+                    break;
+                case MESSAGES:
+                    int count = in.readInt();
+                    if (count < 0 || count > MAX_BATCH) {
+                        throw new IOException("cluster frame of " + count + " messages from node " + link.nodeId);
+                    }
+                    long bytes = 0; // What the sender could have queued, past it the frame is not from a node
+                    for (int i = 0; i < count; i++) {
+                        destinations.add(readString(in));
+                        ByteBuffer head = ByteBuffer.wrap(readBytes(in));
+                        ByteBuffer tail = ByteBuffer.wrap(readBytes(in));
+                        bytes += head.remaining() + tail.remaining();
+                        if (bytes > MAX_QUEUED_BYTES) {
+                            throw new IOException("cluster frame of over " + MAX_QUEUED_BYTES + " bytes from node " + link.nodeId);
+                        }
+                        frames.add(new SharedMessageFrame(head, tail));
+                    }
+                    unseal(link, raw, mac, sequence);
+                    for (int i = 0; i < count; i++) {
+                        receiver.accept(destinations.get(i), frames.get(i));
+                    }
+                    destinations.clear();
+                    frames.clear();
+                    break;
+                default:
+                    throw new IOException("unknown cluster frame type " + type + " from node " + link.nodeId);
+            }
+        }
+    }
+
+    private static void unseal(Link link, DataInputStream raw, Mac mac, long sequence) throws IOException {
+        byte[] expected = mac.doFinal(sequenceBytes(sequence));
+        byte[] actual = new byte[MAC_BYTES];
+        raw.readFully(actual);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new IOException("cluster frame " + sequence + " from node " + link.nodeId + " failed its MAC");
+        }
+    }
+
+    private static byte[] sequenceBytes(long sequence) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(sequence).array();
+    }
+
+    // Without encoding it: a char takes at most 3 bytes of UTF-8, a surrogate pair 4 for its two
+    private static boolean fits(String destination) {
+        return destination.length() <= MAX_PART_BYTES / 3;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PART_BYTES) {
+            throw new IOException("cluster message part of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    // Feeds what is written to the MAC on the way
+    private static final class MacOutputStream extends FilterOutputStream {
+        private final Mac mac;
+
+        private MacOutputStream(OutputStream out, Mac mac) {
+            super(out);
+            this.mac = mac;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mac.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mac.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+
+    // Feeds what is read to the MAC on the way
+    private static final class MacInputStream extends FilterInputStream {
+        private final Mac mac;
+
+        private MacInputStream(InputStream in, Mac mac) {
+            super(in);
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                mac.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                mac.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skipping would leave bytes out of the MAC");
+        }
+    }
+
+    private static final class Outgoing {
+        private final byte type;
+        private final String destination;
+        private final SharedMessageFrame frame; // MESSAGES only
+
+        private Outgoing(byte type, String destination, SharedMessageFrame frame) {
+            this.type = type;
+            this.destination = destination;
+            this.frame = frame;
+        }
+    }
+
+    private static final class Link {
+        private final String nodeId;
+        private final Socket socket;
+        private final DataOutputStream out; // Written by the link's writer only, fed to the MAC
+        private final DataOutputStream raw; // Under out, for the MACs themselves
+        private final Mac mac;
+        private final boolean dialedByUs;
+        private final Set<String> destinations = ConcurrentHashMap.newKeySet(); // Those the node has subscribers for
+        private final Set<String> patterns = new CopyOnWriteArraySet<>();
+        private final LinkedBlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(0);
+        private final byte[] scratch = new byte[BUFFER_SIZE]; // Copies buffers without an array, such as mapped ones
+        private long sequence = 0; // Frames sealed so far, by the writer
+        private volatile boolean closed = false;
+
+        private Link(String nodeId, Socket socket, DataOutputStream out, DataOutputStream raw, Mac mac, boolean dialedByUs) {
+            this.nodeId = nodeId;
+            this.socket = socket;
+            this.out = out;
+            this.raw = raw;
+            this.mac = mac;
+            this.dialedByUs = dialedByUs;
+        }
+
+        private boolean wants(String destination) {
+            if (destinations.contains(destination)) {
+                return true;
+            }
+            for (String pattern : patterns) {
+                if (SubscriptionTrie.matches(pattern, destination)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void interested(String destination, boolean interested) {
+            Set<String> set = SubscriptionTrie.isPattern(destination) ? patterns : destinations;
+            if (interested) {
+                set.add(destination);
+            } else {
+                set.remove(destination);
+            }
+        }
+
+        private void enqueue(Outgoing item) {
+            if (item.frame != null && queuedBytes.addAndGet(item.frame.size()) > MAX_QUEUED_BYTES) {
+                queuedBytes.addAndGet(-item.frame.size());
+                return;
+            }
+            outgoing.add(item);
+        }
+
+        private void close() {
+            closed = true;
+            outgoing.add(CLOSE);
+            closeQuietly(socket);
+        }
+
+        private void writeLoop() {
+            List<Outgoing> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    batch.add(outgoing.take());
+                    outgoing.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                // The reading side notices too and unregisters the link
+            } finally {
+                close();
+            }
+        }
+
+        // Messages next to each other in the batch go in one MESSAGES frame
+        private void write(List<Outgoing> batch) throws IOException {
+            int i = 0;
+            while (i < batch.size()) {
+                Outgoing item = batch.get(i);
+                if (item == CLOSE) {
+                    return;
+                }
+                if (item.type != MESSAGES) {
+                    out.writeByte(item.type);
+                    writeString(item.destination);
+                    seal();
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < batch.size() && batch.get(end).type == MESSAGES) {
+                    end++;
+                }
+                out.writeByte(MESSAGES);
+                out.writeInt(end - i);
+                for (; i < end; i++) {
+                    Outgoing message = batch.get(i);
+                    writeString(message.destination);
+                    writeBuffer(message.frame.head());
+                    writeBuffer(message.frame.tail());
+                    queuedBytes.addAndGet(-message.frame.size());
+                }
+                seal();
+            }
+        }
+
+        private void seal() throws IOException {
+            raw.write(mac.doFinal(sequenceBytes(sequence++)));
+        }
+
+        // Not writeUTF, which cannot take more than 64KB and would fail the link on every reconnection
+        private void writeString(String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeBuffer(ByteBuffer buffer) throws IOException {
+            out.writeInt(buffer.remaining());
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), scratch.length);
+                buffer.get(scratch, 0, length);
+                out.write(scratch, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The connected clients, indexed by connection id in an array of pages instead of a map of boxed ids.
+ * Servers hand out ids in increasing order and retire each of them exactly once the connection is gone,
+ * so a page whose ids were all retired will never be used again and is swapped for a shared empty page.
+ * Lookups never lock, adding and retiring lock the page (or the directory when a page comes or goes).
+ */
+class ConnectionSlots<T> {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    @SuppressWarnings("rawtypes")
+    private static final Page DROPPED = new Page(); // Stands for every page whose ids were all retired
+
+    private volatile AtomicReferenceArray<Page<T>> directory = new AtomicReferenceArray<>(16);
+
+    ConnectionHandler<T> get(int connectionId) {
+        if (connectionId < 0) {
+            return null;
+        }
+        AtomicReferenceArray<Page<T>> pages = directory;
+        int pageIndex = connectionId >>> PAGE_BITS;
+        if (pageIndex >= pages.length()) {
+            return null;
+        }
+        Page<T> page = pages.get(pageIndex);
+        return page == null ? null : page.slots.get(connectionId & PAGE_MASK);
+    }
+
+    void put(int connectionId, ConnectionHandler<T> handler) {
+        Page<T> page = pageFor(connectionId);
+        if (page == DROPPED) {
+            return; // A late CONNECT of a connection already closed
+        }
+        synchronized (page) {
+            if (!page.isRetired(connectionId & PAGE_MASK)) {
+                page.slots.set(connectionId & PAGE_MASK, handler);
+            }
+        }
+    }
+
+    /**
+     * Removes the connection for good, its id is never used again.
+     */
+    void retire(int connectionId) {
+        if (connectionId < 0) {
+            return;
+        }
+        Page<T> page = pageFor(connectionId);
+        if (page == DROPPED) {
+            return;
+        }
+        boolean emptied;
+        synchronized (page) {
+            page.slots.set(connectionId & PAGE_MASK, null);
+            emptied = page.retire(connectionId & PAGE_MASK) && page.retiredCount == PAGE_SIZE;
+        }
+        if (emptied) {
+            synchronized (this) {
+                directory.set(connectionId >>> PAGE_BITS, dropped());
+            }
+        }
+    }
+
+    /**
+     * @return true once the connection was retired
+     */
+    boolean isRetired(int connectionId) {
+        if (connectionId < 0) {
+            return false;
+        }
+        AtomicReferenceArray<Page<T>> pages = directory;
+        int pageIndex = connectionId >>> PAGE_BITS;
+        Page<T> page = pageIndex < pages.length() ? pages.get(pageIndex) : null;
+        if (page == null) {
+            return false;
+        }
+        if (page == DROPPED) {
+            return true;
+        }
+        synchronized (page) {
+            return page.isRetired(connectionId & PAGE_MASK);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Page<T> dropped() {
+        return (Page<T>) DROPPED;
+    }
+
+    private Page<T> pageFor(int connectionId) {
+        int pageIndex = connectionId >>> PAGE_BITS;
+        AtomicReferenceArray<Page<T>> pages = directory;
+        if (pageIndex < pages.length()) {
+            Page<T> page = pages.get(pageIndex);
+            if (page != null) {
+                return page;
+            }
+        }
+        synchronized (this) {
+            pages = directory;
+            if (pageIndex >= pages.length()) {
+                AtomicReferenceArray<Page<T>> grown = new AtomicReferenceArray<>(Math.max(pages.length() * 2, pageIndex + 1));
+                for (int i = 0; i < pages.length(); i++) {
+                    grown.set(i, pages.get(i));
+                }
+                directory = pages = grown;
+            }
+            Page<T> page = pages.get(pageIndex);
+            if (page == null) {
+                page = new Page<>();
+                pages.set(pageIndex, page);
+            }
+            return page;
+        }
+    }
+
+    private static final class Page<T> {
+        private final AtomicReferenceArray<ConnectionHandler<T>> slots = new AtomicReferenceArray<>(PAGE_SIZE);
+        private final long[] retired = new long[PAGE_SIZE / 64]; // Guarded by the page
+        private int retiredCount = 0;
+
+        private boolean isRetired(int slot) {
+            return (retired[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        // @return true the first time the slot is retired
+        private boolean retire(int slot) {
+            if (isRetired(slot)) {
+                return false;
+            }
+            retired[slot >>> 6] |= 1L << slot;
+            retiredCount++;
+            return true;
+        }
+    }
+}
@@ -1,13 +1,66 @@
 package bgu.spl.net.impl.stomp;
 import bgu.spl.net.srv.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionsImpl<T> implements Connections<T> {
-    private Map<Integer, ConnectionHandler<T>> clients = new ConcurrentHashMap<>();
-    private Map<String, List<Integer>> topics = new ConcurrentHashMap<>(); //every client that subscribe to specific topic
-    private Map<String, String> users = new ConcurrentHashMap<>(); // Map for username -> password
+    /**
+     * How a queue picks the subscriber each message goes to.
+     */
+    public enum ConsumerBalancing {
+        /** Each subscriber in turn */
+        ROUND_ROBIN,
+        /** The subscriber with the fewest unacknowledged messages, then the fewest bytes waiting to be written */
+        LEAST_BACKLOGGED
+    }
+
+    /**
+     * What happens to a publish over a rate limit.
+     */
+    public enum RateLimitAction {
+        /** It is refused, STOMP errors close the connection */
+        REJECT,
+        /** It goes through, and the connection's reads pause until it is back within the rate */
+        DELAY
+    }
+
+    private static final int MAX_CACHED_ROUTES = 16384;
+    public static final int DEFAULT_FAN_OUT_THRESHOLD = 4096;
+    private static final int FAN_OUT_CHUNK = 512; // Subscribers delivered to by one fan-out task
+    private static final String LOG_OFFSET = "log-offset"; // Header telling subscribers where a logged message is
+
+    private ConnectionSlots<T> clients = new ConnectionSlots<>();
+    private ConcurrentHashMap<String, SubscriberSet<T>> topics = new ConcurrentHashMap<>(); //every client that subscribe to specific topic, with its subscription id
+    private SubscriptionTrie<T> patterns = new SubscriptionTrie<>(); // Subscriptions to wildcard destinations
+    private ConcurrentHashMap<String, Route<T>> routes = new ConcurrentHashMap<>(); // Concrete destination -> every set it is delivered to
+    private AtomicLong routesVersion = new AtomicLong(); // Bumped whenever a set is created or removed, outdating the cached routes
+    private Map<Integer, Map<String, Integer>> subscriptionsOf = new ConcurrentHashMap<>(); // Reverse index: client -> its topics -> subscription id
+    private volatile CredentialStore credentials = new HashedCredentialStore();
+    private Map<String, Integer> sessions = new ConcurrentHashMap<>(); // User -> the connection logged in as them
+    private Map<Integer, String> userOf = new ConcurrentHashMap<>(); // Reverse index: connection -> its user
+    private volatile RateLimiter loginLimiter; // Per user, null when logins are not limited
+    private volatile RateLimiter publishLimiter; // Per user
+    private volatile RateLimiter destinationLimiter; // Per destination, whoever publishes
+    private volatile RateLimitAction rateLimitAction = RateLimitAction.DELAY;
+    private Map<String, SlowConsumerPolicy> topicPolicies = new ConcurrentHashMap<>(); // Overrides of the server wide policy
+    private Map<String, String> conflationKeys = new ConcurrentHashMap<>(); // Topic -> the field whose messages replace each other
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private volatile int fanOutThreshold = DEFAULT_FAN_OUT_THRESHOLD;
+    private volatile MessageLog messageLog; // Null when no destination is logged
+    private volatile RetainedMessages retainedMessages; // Null when no destination retains messages
+    private volatile Cluster cluster; // Null when this node is on its own
+    private Map<Integer, Map<String, Replay>> replays = new ConcurrentHashMap<>(); // Subscriptions still catching up on a log
+    private Map<Integer, Map<Integer, AckWindow<T>>> windowsOf = new ConcurrentHashMap<>(); // client -> subscription id -> its unacknowledged messages
+    private volatile int defaultWindow = AckWindow.DEFAULT_WINDOW;
+    private Map<Integer, Map<Integer, MessageSelector>> selectorsOf = new ConcurrentHashMap<>(); // client -> subscription id -> its filter
+    private ConcurrentHashMap<String, WorkQueue<T>> queues = new ConcurrentHashMap<>(); // Point-to-point destinations, their subscribers are in topics
+    private volatile ConsumerBalancing consumerBalancing = ConsumerBalancing.ROUND_ROBIN;
+    private final ForkJoinPool fanOutPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors()); // Starts its workers on first use
 
     @Override
     public boolean send(int connectionId, T msg) {
@@ -21,35 +74,898 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     @Override
     public void send(String topic, T msg) {
-        List<Integer> subscribers = topics.get(topic);
-        if (subscribers != null) {
-            for (int id : subscribers) {
-                send(id, msg);
+        send(topic, msg, -1);
+    }
+
+    @Override
+    public void send(String topic, T msg, int publisherId) {
+        if (!(msg instanceof StompFrame)) {
+            for (SubscriberSet<T> subscribers : routeOf(topic).sets) {
+                for (ConnectionHandler<T> handler : subscribers.snapshot().handlers) {
+                    handler.send(msg);
+                }
             }
+            return;
         }
+        StompFrame frame = (StompFrame) msg;
+        DestinationLog log = messageLog == null ? null : messageLog.forDestination(topic);
+        if (log == null) {
+            // Encode the frame once, every subscriber only gets its own subscription id patched in
+            SharedMessageFrame shared = new SharedMessageFrame(frame);
+            publish(topic, shared, publisherId);
+            forward(topic, shared);
+            return;
+        }
+        long offset;
+        RuntimeException failure = null;
+        boolean queue = WorkQueue.isQueue(topic);
+        synchronized (log) { // Offsets follow delivery order, and a replay cannot go live between the two
+            // A message the queue refuses must not be in the log either, it would come back on replay
+            if (queue && !hasRoom(topic)) {
+                throw queueFull(topic);
+            }
+            offset = log.endOffset();
+            SharedMessageFrame shared = new SharedMessageFrame(frame, LOG_OFFSET, Long.toString(offset));
+            try {
+                log.append(shared);
+            } catch (RuntimeException e) {
+                failure = e; // Still deliver to the subscribers that are connected
+                shared = new SharedMessageFrame(frame);
+            }
+            if (queue) {
+                enqueue(topic, shared, publisherId, true);
+            } else {
+                publish(topic, shared, publisherId);
+                forward(topic, shared);
+            }
+        }
+        if (failure != null) {
+            failure.printStackTrace();
+            throw new IllegalStateException("The message could not be logged on " + topic + ": " + failure.getMessage(), failure);
+        }
+        messageLog.awaitDurable(log, offset);
     }
 
+    /**
+     * Every subscriber gets the messages published on plain topics as one write queue entry,
+     * one wakeup of its loop and one gathering write. Messages that are logged, retained, sent to a queue
+     * or to a subscription that acknowledges are delivered one by one, in their place in the order.
+     */
     @Override
-    public void subscribe(String topic, int connectionId) {
-        topics.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(connectionId);
+    public void sendBatch(List<String> channels, List<T> msgs, int publisherId) {
+        ConnectionHandler<T> publisher = publisherId < 0 ? null : clients.get(publisherId);
+        ConnectionHandler<T> ackPublisher = publisher == null || windowsOf.containsKey(publisherId) ? null : publisher;
+        Map<ConnectionHandler<T>, Batch> batches = new IdentityHashMap<>();
+        IllegalStateException failure = null; // The first message not accepted, the others still go
+        for (int m = 0; m < msgs.size(); m++) {
+            String topic = channels.get(m);
+            T msg = msgs.get(m);
+            if (!isBatchable(topic, msg)) {
+                flush(batches, publisher); // Whatever came before goes out first
+                try {
+                    send(topic, msg, publisherId);
+                } catch (IllegalStateException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                continue;
+            }
+            SharedMessageFrame shared = new SharedMessageFrame((StompFrame) msg);
+            SlowConsumerPolicy policy = topicPolicies.getOrDefault(topic, slowConsumerPolicy);
+            for (SubscriberSet<T> subscribers : routeOf(topic).sets) {
+                SubscriberSet.Snapshot<T> snapshot = subscribers.snapshot();
+                boolean[] verdicts = snapshot.evaluate(shared);
+                for (int i = 0; i < snapshot.size(); i++) {
+                    if (snapshot.windows[i] != null) {
+                        deliver(snapshot, i, i + 1, verdicts, topic, null, shared, policy, publisher, ackPublisher);
+                    } else if (verdicts == null || snapshot.selects(verdicts, i)) {
+                        Batch batch = batches.get(snapshot.handlers[i]);
+                        if (batch == null) {
+                            batch = new Batch(snapshot.connectionIds[i], topic, policy);
+                            batches.put(snapshot.handlers[i], batch);
+                        }
+                        Collections.addAll(batch.parts, shared.forSubscription(snapshot.subscriptionIds[i]));
+                    }
+                }
+            }
+            forward(topic, shared);
+        }
+        flush(batches, publisher);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // A conflated topic is not: its messages must stay one per write queue entry to replace each other there
+    private boolean isBatchable(String topic, T msg) {
+        MessageLog log = messageLog;
+        RetainedMessages retained = retainedMessages;
+        return msg instanceof StompFrame && !WorkQueue.isQueue(topic) && !conflationKeys.containsKey(topic)
+                && (log == null || log.forDestination(topic) == null)
+                && (retained == null || !retained.retains(topic));
+    }
+
+    private void flush(Map<ConnectionHandler<T>, Batch> batches, ConnectionHandler<T> publisher) {
+        for (Map.Entry<ConnectionHandler<T>, Batch> entry : batches.entrySet()) {
+            ConnectionHandler<T> handler = entry.getKey();
+            Batch batch = entry.getValue();
+            OutboundFrame frame = new OutboundFrame(batch.channel, batch.parts.toArray(new ByteBuffer[0]));
+            if (!handler.sendEncoded(frame, batch.policy) && batch.policy == SlowConsumerPolicy.DISCONNECT) {
+                disconnectSlowConsumer(batch.connectionId, handler, batch.channel);
+            } else if (publisher != null && handler.isSaturated()) {
+                handler.holdUntilDrained(publisher);
+            }
+        }
+        batches.clear();
+    }
+
+    /**
+     * The messages of a batch for one subscriber. Slow consumer policies treat it as one message
+     * of the channel of its first one.
+     */
+    private static final class Batch {
+        private final int connectionId;
+        private final String channel;
+        private final SlowConsumerPolicy policy;
+        private final List<ByteBuffer> parts = new ArrayList<>();
+
+        private Batch(int connectionId, String channel, SlowConsumerPolicy policy) {
+            this.connectionId = connectionId;
+            this.channel = channel;
+            this.policy = policy;
+        }
+    }
+
+    // Once to each other node with subscribers for it, queues excepted
+    private void forward(String topic, SharedMessageFrame shared) {
+        Cluster linked = cluster;
+        if (linked != null && !WorkQueue.isQueue(topic)) {
+            linked.forward(topic, shared);
+        }
+    }
+
+    /**
+     * Links this node to the others of the cluster: they learn which destinations have subscribers here,
+     * and what they publish on those is delivered here. Must be called before clients connect.
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        cluster.start((topic, shared) -> publish(topic, shared, -1), this::hasSubscribers);
+    }
+
+    private boolean hasSubscribers(String destination) {
+        return SubscriptionTrie.isPattern(destination) ? patterns.contains(destination) : topics.containsKey(destination);
+    }
+
+    private void interestChanged(String topic) {
+        Cluster linked = cluster;
+        if (linked != null && !WorkQueue.isQueue(topic)) {
+            linked.interestChanged(topic);
+        }
+    }
+
+    private void publish(String topic, SharedMessageFrame shared, int publisherId) {
+        if (WorkQueue.isQueue(topic)) {
+            enqueue(topic, shared, publisherId, false);
+            return;
+        }
+        RetainedMessages retained = retainedMessages;
+        if (retained == null) {
+            fanOut(topic, shared, publisherId, snapshotsOf(topic));
+        } else {
+            retained.publish(topic, shared, () -> {
+                List<SubscriberSet.Snapshot<T>> snapshots = snapshotsOf(topic);
+                return () -> fanOut(topic, shared, publisherId, snapshots);
+            });
+        }
+    }
+
+    private List<SubscriberSet.Snapshot<T>> snapshotsOf(String topic) {
+        SubscriberSet<T>[] sets = routeOf(topic).sets;
+        List<SubscriberSet.Snapshot<T>> snapshots = new ArrayList<>(sets.length);
+        for (SubscriberSet<T> subscribers : sets) {
+            snapshots.add(subscribers.snapshot());
+        }
+        return snapshots;
+    }
+
+    private void fanOut(String topic, SharedMessageFrame shared, int publisherId, List<SubscriberSet.Snapshot<T>> snapshots) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        SlowConsumerPolicy policy = topicPolicies.getOrDefault(topic, slowConsumerPolicy);
+        String key = conflationKeyOf(topic, shared);
+        ConnectionHandler<T> publisher = publisherId < 0 ? null : clients.get(publisherId);
+        // A publisher that acknowledges messages itself is not held for others' acknowledgements, both could wait forever
+        ConnectionHandler<T> ackPublisher = publisher == null || windowsOf.containsKey(publisherId) ? null : publisher;
+        for (SubscriberSet.Snapshot<T> snapshot : snapshots) {
+            boolean[] verdicts = snapshot.evaluate(shared); // Each distinct selector once, whatever the subscribers sharing it
+            if (snapshot.size() < fanOutThreshold) {
+                deliver(snapshot, 0, snapshot.size(), verdicts, topic, key, shared, policy, publisher, ackPublisher);
+            } else {
+                // Returns only once every chunk is queued, so the next publish cannot overtake this one
+                fanOutPool.invoke(new FanOutTask(snapshot, 0, snapshot.size(), verdicts, topic, key, shared, policy,
+                        publisher, ackPublisher));
+            }
+        }
+    }
+
+    /**
+     * @param verdicts what the snapshot's selectors say about the message, null if it has none
+     * @param key the message's conflation key, null if it does not replace earlier ones
+     * @param ackPublisher the publisher if it may be held until subscribers acknowledge, else null
+     */
+    private void deliver(SubscriberSet.Snapshot<T> snapshot, int from, int to, boolean[] verdicts, String topic,
+                         String key, SharedMessageFrame shared, SlowConsumerPolicy policy, ConnectionHandler<T> publisher,
+                         ConnectionHandler<T> ackPublisher) {
+        ConnectionHandler<T>[] handlers = snapshot.handlers;
+        for (int i = from; i < to; i++) {
+            if (verdicts != null && !snapshot.selects(verdicts, i)) {
+                continue;
+            }
+            ConnectionHandler<T> handler = handlers[i];
+            AckWindow<T> window = snapshot.windows[i];
+            if (window != null) {
+                // At most the window is queued to the connection, so only acknowledgements can be waited for
+                if (!window.offer(topic, shared, policy)) {
+                    disconnectSlowConsumer(snapshot.connectionIds[i], handler, topic);
+                } else if (ackPublisher != null && window.isBacklogged()) {
+                    window.holdPublisher(ackPublisher);
+                }
+                continue;
+            }
+            // Subscriptions that acknowledge are left out above: each message they are sent must come back acknowledged
+            OutboundFrame frame = outbound(topic, key, shared.forSubscription(snapshot.subscriptionIds[i]));
+            if (!handler.sendEncoded(frame, policy) && policy == SlowConsumerPolicy.DISCONNECT) {
+                disconnectSlowConsumer(snapshot.connectionIds[i], handler, topic);
+            } else if (publisher != null && handler.isSaturated()) {
+                handler.holdUntilDrained(publisher); // Push back on the publisher until this subscriber catches up
+            }
+        }
+    }
+
+    private static OutboundFrame outbound(String topic, String key, ByteBuffer[] buffers) {
+        return key == null ? new OutboundFrame(topic, buffers) : OutboundFrame.conflatable(topic, key, buffers);
+    }
+
+    /**
+     * @return the value of the topic's conflation field in the message, null if the topic is not conflated
+     * or the message does not have it
+     */
+    private String conflationKeyOf(String topic, SharedMessageFrame shared) {
+        String field = conflationKeys.get(topic);
+        return field == null ? null : shared.fields().get(field);
+    }
+
+    /**
+     * @param admitted the room was checked already: only messages given back since may fill it, the message goes anyway
+     * @throws IllegalStateException if the queue is full
+     */
+    private void enqueue(String queue, SharedMessageFrame shared, int publisherId, boolean admitted) {
+        WorkQueue<T> work = queues.computeIfAbsent(queue, k -> new WorkQueue<>());
+        SlowConsumer<T> slow;
+        synchronized (work) { // Also keeps the queue's order, the next publish waits for this one
+            if (!work.add(shared, admitted)) {
+                throw queueFull(queue);
+            }
+            slow = dispatch(queue, work, publisherId < 0 ? null : clients.get(publisherId));
+        }
+        disconnectSlowConsumer(queue, slow);
+    }
+
+    private boolean hasRoom(String queue) {
+        WorkQueue<T> work = queues.get(queue);
+        if (work == null) {
+            return true;
+        }
+        synchronized (work) {
+            return work.hasRoom();
+        }
+    }
+
+    private static IllegalStateException queueFull(String queue) {
+        return new IllegalStateException("Queue " + queue + " is full, " + WorkQueue.MAX_WAITING
+                + " messages wait for its consumers");
+    }
+
+    private void dispatch(String queue) {
+        WorkQueue<T> work = queues.get(queue);
+        if (work != null) {
+            SlowConsumer<T> slow;
+            synchronized (work) {
+                slow = dispatch(queue, work, null);
+            }
+            disconnectSlowConsumer(queue, slow);
+        }
+    }
+
+    /**
+     * Disconnecting gives what the consumer did not acknowledge back to its queues, which takes their locks:
+     * it is only done once the queue's lock is released, then what waits is dispatched again.
+     */
+    private void disconnectSlowConsumer(String queue, SlowConsumer<T> slow) {
+        if (slow != null) {
+            disconnectSlowConsumer(slow.connectionId, slow.handler, queue);
+            dispatch(queue);
+        }
+    }
+
+    /**
+     * The queue's subscribers are read under its lock: one added meanwhile dispatches what we left waiting.
+     *
+     * @return the consumer found too slow to take the next message, which waits in front for the others, null if none
+     */
+    private SlowConsumer<T> dispatch(String queue, WorkQueue<T> work, ConnectionHandler<T> publisher) {
+        SlowConsumerPolicy policy = topicPolicies.getOrDefault(queue, slowConsumerPolicy);
+        while (!work.isEmpty()) {
+            SubscriberSet<T> consumers = topics.get(queue);
+            SubscriberSet.Snapshot<T> snapshot = consumers == null ? null : consumers.snapshot();
+            if (snapshot == null || snapshot.size() == 0) {
+                return null; // Waits for a subscriber
+            }
+            boolean[] verdicts = snapshot.evaluate(work.peek().frame);
+            int i = work.choose(snapshot, verdicts, consumerBalancing);
+            if (i < 0) {
+                if (verdicts != null && !selectsAny(snapshot, verdicts)) {
+                    work.poll(); // No subscriber wants it, as on a topic
+                    continue;
+                }
+                return null; // Waits for a subscriber to acknowledge
+            }
+            WorkQueue.Entry entry = work.poll();
+            ConnectionHandler<T> handler = snapshot.handlers[i];
+            AckWindow<T> window = snapshot.windows[i];
+            boolean sent;
+            if (window != null) {
+                sent = window.offer(queue, entry.frame, entry.redelivered, policy);
+            } else {
+                int subscriptionId = snapshot.subscriptionIds[i];
+                ByteBuffer[] buffers = entry.redelivered
+                        ? entry.frame.forSubscription(subscriptionId, "redelivered:true")
+                        : entry.frame.forSubscription(subscriptionId);
+                sent = handler.sendEncoded(new OutboundFrame(queue, buffers), policy) || policy != SlowConsumerPolicy.DISCONNECT;
+                if (sent && publisher != null && handler.isSaturated()) {
+                    handler.holdUntilDrained(publisher);
+                }
+            }
+            if (!sent) {
+                work.putBack(entry);
+                return new SlowConsumer<>(snapshot.connectionIds[i], handler);
+            }
+        }
+        return null;
+    }
+
+    private static final class SlowConsumer<T> {
+        private final int connectionId;
+        private final ConnectionHandler<T> handler;
+
+        private SlowConsumer(int connectionId, ConnectionHandler<T> handler) {
+            this.connectionId = connectionId;
+            this.handler = handler;
+        }
+    }
+
+    private static boolean selectsAny(SubscriberSet.Snapshot<?> snapshot, boolean[] verdicts) {
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.selects(verdicts, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives the messages a subscriber left unacknowledged to the queue's other subscribers.
+     */
+    private void requeue(String queue, List<SharedMessageFrame> frames) {
+        if (frames.isEmpty()) {
+            return;
+        }
+        WorkQueue<T> work = queues.computeIfAbsent(queue, k -> new WorkQueue<>());
+        SlowConsumer<T> slow;
+        synchronized (work) {
+            work.requeue(frames);
+            slow = dispatch(queue, work, null);
+        }
+        disconnectSlowConsumer(queue, slow);
+    }
+
+    /**
+     * Sets how every queue picks the subscriber of each message.
+     */
+    public void setConsumerBalancing(ConsumerBalancing balancing) {
+        consumerBalancing = balancing;
+    }
+
+    /**
+     * Delivers a range of a large topic's subscribers, split in halves until a chunk is small enough
+     * to be worth one task.
+     */
+    @SuppressWarnings("serial") // Serializable through ForkJoinTask only, it holds handlers and is never serialized
+    private final class FanOutTask extends RecursiveAction {
+        private final SubscriberSet.Snapshot<T> snapshot;
+        private final int from;
+        private final int to;
+        private final boolean[] verdicts;
+        private final String topic;
+        private final String key;
+        private final SharedMessageFrame shared;
+        private final SlowConsumerPolicy policy;
+        private final ConnectionHandler<T> publisher;
+        private final ConnectionHandler<T> ackPublisher;
+
+        private FanOutTask(SubscriberSet.Snapshot<T> snapshot, int from, int to, boolean[] verdicts, String topic,
+                           String key, SharedMessageFrame shared, SlowConsumerPolicy policy,
+                           ConnectionHandler<T> publisher, ConnectionHandler<T> ackPublisher) {
+            this.snapshot = snapshot;
+            this.from = from;
+            this.to = to;
+            this.verdicts = verdicts;
+            this.topic = topic;
+            this.key = key;
+            this.shared = shared;
+            this.policy = policy;
+            this.publisher = publisher;
+            this.ackPublisher = ackPublisher;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FAN_OUT_CHUNK) {
+                deliver(snapshot, from, to, verdicts, topic, key, shared, policy, publisher, ackPublisher);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FanOutTask(snapshot, from, middle, verdicts, topic, key, shared, policy, publisher, ackPublisher),
+                    new FanOutTask(snapshot, middle, to, verdicts, topic, key, shared, policy, publisher, ackPublisher));
+        }
+    }
+
+    /**
+     * The sets a message on the destination goes to: its own subscribers and those of every matching pattern.
+     * Cached per destination, so once warmed up publishing costs one lookup whatever the number of patterns.
+     */
+    private Route<T> routeOf(String destination) {
+        long version = routesVersion.get(); // Read first, a set created while we match outdates what we cache
+        Route<T> route = routes.get(destination);
+        if (route != null && route.version == version) {
+            return route;
+        }
+        List<SubscriberSet<T>> sets = patterns.match(destination);
+        SubscriberSet<T> exact = topics.get(destination);
+        if (exact != null) {
+            sets.add(0, exact);
+        }
+        route = new Route<>(version, sets);
+        if (routes.size() >= MAX_CACHED_ROUTES) {
+            routes.clear(); // Publishers may use any number of destinations, keep only the recent ones
+        }
+        routes.put(destination, route);
+        return route;
+    }
+
+    private static final class Route<T> {
+        private final long version;
+        private final SubscriberSet<T>[] sets;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Route(long version, List<SubscriberSet<T>> sets) {
+            this.version = version;
+            this.sets = sets.toArray(new SubscriberSet[0]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void disconnectSlowConsumer(int connectionId, ConnectionHandler<T> handler, String topic) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("message", "Slow consumer");
+        String body = "Too many messages are waiting to be written to this connection, last one was on " + topic;
+        disconnect(connectionId);
+        handler.sendAndClose((T) new StompFrame("ERROR", headers, body));
+    }
+
+    /**
+     * Sets what is done with messages for subscribers that passed their high watermark,
+     * for every topic without a policy of its own.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        slowConsumerPolicy = policy;
+    }
+
+    public void setSlowConsumerPolicy(String topic, SlowConsumerPolicy policy) {
+        topicPolicies.put(topic, policy);
+    }
+
+    /**
+     * Conflates the topic by a field of its messages, a header or a line of the body such as "event name":
+     * a message waiting to be written to a subscriber is replaced, in its place, by a newer one with the same value.
+     * Slow subscribers then get the latest message of each key instead of every one of them.
+     * Subscriptions that acknowledge their messages and messages without the field are never replaced.
+     */
+    public void setConflationKey(String topic, String field) {
+        conflationKeys.put(topic, field);
+    }
+
+    /**
+     * Topics with at least this many subscribers are delivered to by several threads in parallel,
+     * smaller ones by the publishing thread alone.
+     */
+    public void setFanOutThreshold(int subscribers) {
+        if (subscribers < 1) {
+            throw new IllegalArgumentException("the fan-out threshold must be positive");
+        }
+        fanOutThreshold = subscribers;
+    }
+
+    /**
+     * Subscribes and first delivers the messages retained for the topic, if any.
+     */
+    @Override
+    public void subscribe(String topic, int connectionId, int subscriptionId) {
+        RetainedMessages retained = retainedMessages;
+        ConnectionHandler<T> handler = clients.get(connectionId);
+        if (retained == null || handler == null || SubscriptionTrie.isPattern(topic) || WorkQueue.isQueue(topic)) {
+            addSubscriber(topic, connectionId, subscriptionId);
+            return;
+        }
+        AckWindow<T> window = windowOf(connectionId, subscriptionId);
+        MessageSelector selector = selectorOf(connectionId, subscriptionId);
+        boolean[] slow = new boolean[1]; // Disconnected once the ring is released, that takes other locks
+        retained.join(topic, snapshot -> {
+            SlowConsumerPolicy policy = topicPolicies.getOrDefault(topic, slowConsumerPolicy);
+            for (SharedMessageFrame shared : snapshot) {
+                if (selector != null && !selector.matches(shared.fields())) {
+                    continue;
+                }
+                boolean sent = window != null
+                        ? window.offer(topic, shared, policy)
+                        : handler.sendEncoded(outbound(topic, conflationKeyOf(topic, shared),
+                                shared.forSubscription(subscriptionId)), policy)
+                                || policy != SlowConsumerPolicy.DISCONNECT;
+                if (!sent) {
+                    slow[0] = true;
+                    return;
+                }
+            }
+            addSubscriber(topic, connectionId, subscriptionId);
+        });
+        if (slow[0]) {
+            disconnectSlowConsumer(connectionId, handler, topic);
+        }
+    }
+
+    private void addSubscriber(String topic, int connectionId, int subscriptionId) {
+        ConnectionHandler<T> handler = clients.get(connectionId);
+        if (handler == null) {
+            return; // Not connected, or already gone
+        }
+        subscriptionsOf.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(topic, subscriptionId);
+        AckWindow<T> window = windowOf(connectionId, subscriptionId);
+        MessageSelector selector = selectorOf(connectionId, subscriptionId);
+        boolean created;
+        if (SubscriptionTrie.isPattern(topic)) {
+            created = patterns.add(topic, connectionId, handler, subscriptionId, window, selector);
+        } else {
+            boolean[] absent = new boolean[1];
+            // The set is only changed inside compute, so a topic being removed cannot swallow a new subscriber
+            topics.compute(topic, (k, subscribers) -> {
+                if (subscribers == null) {
+                    subscribers = new SubscriberSet<>();
+                    absent[0] = true;
+                }
+                subscribers.add(connectionId, handler, subscriptionId, window, selector);
+                return subscribers;
+            });
+            created = absent[0];
+        }
+        if (created) {
+            routesVersion.incrementAndGet(); // Only once the set can be found
+            interestChanged(topic);
+        }
+        if (WorkQueue.isQueue(topic)) {
+            dispatch(topic); // What waited for a subscriber
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the selector is malformed
+     */
+    @Override
+    public boolean setSelector(String topic, int connectionId, int subscriptionId, String selector) {
+        MessageSelector compiled = MessageSelector.compile(selector);
+        selectorsOf.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(subscriptionId, compiled);
+        return true;
+    }
+
+    private MessageSelector selectorOf(int connectionId, int subscriptionId) {
+        Map<Integer, MessageSelector> ofConnection = selectorsOf.get(connectionId);
+        return ofConnection == null ? null : ofConnection.get(subscriptionId);
+    }
+
+    @Override
+    public boolean requireAcks(String topic, int connectionId, int subscriptionId, int window, boolean cumulative) {
+        ConnectionHandler<T> handler = clients.get(connectionId);
+        if (handler != null) {
+            // A queue subscriber that acknowledges makes room for the messages waiting in the queue
+            Runnable onRoom = WorkQueue.isQueue(topic) ? () -> dispatch(topic) : null;
+            AckWindow<T> acks = new AckWindow<>(handler, topic, subscriptionId, window > 0 ? window : defaultWindow,
+                    cumulative, onRoom);
+            windowsOf.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(subscriptionId, acks);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean ack(int connectionId, int subscriptionId, long sequence) {
+        AckWindow<T> window = windowOf(connectionId, subscriptionId);
+        if (window == null) {
+            return false;
+        }
+        window.ack(sequence); // An acknowledgement already covered by a cumulative one changes nothing
+        return true;
+    }
+
+    @Override
+    public boolean nack(int connectionId, int subscriptionId, long sequence) {
+        AckWindow<T> window = windowOf(connectionId, subscriptionId);
+        if (window == null) {
+            return false;
+        }
+        window.nack(sequence);
+        return true;
+    }
+
+    private AckWindow<T> windowOf(int connectionId, int subscriptionId) {
+        Map<Integer, AckWindow<T>> ofConnection = windowsOf.get(connectionId);
+        return ofConnection == null ? null : ofConnection.get(subscriptionId);
+    }
+
+    /**
+     * Messages beyond this many unacknowledged ones wait on the server, for subscriptions that did not pick a window.
+     */
+    public void setDefaultWindow(int messages) {
+        if (messages < 1) {
+            throw new IllegalArgumentException("the window must hold at least one message");
+        }
+        defaultWindow = messages;
+    }
+
+    @Override
+    public boolean subscribeFromOffset(String topic, int connectionId, int subscriptionId, long offset) {
+        DestinationLog log = messageLog == null ? null : messageLog.forDestination(topic);
+        if (log == null) {
+            return false;
+        }
+        return replay(log, topic, connectionId, subscriptionId, offset);
+    }
+
+    @Override
+    public boolean subscribeFromTime(String topic, int connectionId, int subscriptionId, long timestampMillis) {
+        DestinationLog log = messageLog == null ? null : messageLog.forDestination(topic);
+        if (log == null) {
+            return false;
+        }
+        return replay(log, topic, connectionId, subscriptionId, log.offsetAt(timestampMillis));
+    }
+
+    private boolean replay(DestinationLog log, String topic, int connectionId, int subscriptionId, long offset) {
+        ConnectionHandler<T> handler = clients.get(connectionId);
+        if (handler == null) {
+            return true; // Not connected, or already gone
+        }
+        Replay replay = new Replay(log, topic, connectionId, subscriptionId, handler, offset);
+        replays.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(topic, replay);
+        replay.run();
+        return true;
+    }
+
+    /**
+     * @return the subscription id of the replay, null if none was running
+     */
+    private Integer cancelReplay(int connectionId, String topic) {
+        Map<String, Replay> ofConnection = replays.get(connectionId);
+        Replay replay = ofConnection == null ? null : ofConnection.remove(topic);
+        if (replay == null) {
+            return null;
+        }
+        replay.cancel();
+        return replay.subscriptionId;
+    }
+
+    /**
+     * Streams a log to one subscriber, as fast as its connection drains, then makes it a live subscriber.
+     * The backlog is never copied: the queued frames are views of the log's mapped segments.
+     */
+    private final class Replay implements Runnable {
+        private final DestinationLog log;
+        private final String topic;
+        private final int connectionId;
+        private final int subscriptionId;
+        private final ConnectionHandler<T> handler;
+        private final AckWindow<T> window; // Null if the subscription does not acknowledge
+        private final MessageSelector selector; // Null if the subscription takes every message
+        private long next; // Only used by the thread running the replay, handed over through whenDrained or whenRoom
+        private boolean cancelled = false; // Guarded by the replay
+
+        private Replay(DestinationLog log, String topic, int connectionId, int subscriptionId,
+                       ConnectionHandler<T> handler, long next) {
+            this.log = log;
+            this.topic = topic;
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.handler = handler;
+            this.window = windowOf(connectionId, subscriptionId);
+            this.selector = selectorOf(connectionId, subscriptionId);
+            this.next = next;
+        }
+
+        @Override
+        public void run() {
+            while (!isCancelled()) {
+                if (handler.isSaturated()) {
+                    handler.whenDrained(this); // Carry on once the backlog already queued is written
+                    return;
+                }
+                if (window != null && window.isBacklogged()) {
+                    window.whenRoom(this); // Carry on once the subscriber acknowledged enough
+                    return;
+                }
+                long end = log.endOffset();
+                if (next >= end) {
+                    goLive();
+                    return;
+                }
+                if (!deliver(end, true)) {
+                    return;
+                }
+            }
+        }
+
+        // Publishing holds the log's lock too, so nothing is appended between the last replayed message and the first live one
+        private void goLive() {
+            synchronized (log) {
+                synchronized (this) {
+                    if (cancelled || !deliver(log.endOffset(), false)) {
+                        return;
+                    }
+                    replays.computeIfPresent(connectionId, (k, ofConnection) -> {
+                        ofConnection.remove(topic, this);
+                        return ofConnection.isEmpty() ? null : ofConnection;
+                    });
+                    addSubscriber(topic, connectionId, subscriptionId); // The log already covered what is retained
+                }
+            }
+        }
+
+        /**
+         * @param paced stop early once the connection is saturated
+         * @return false if the subscriber was disconnected for being too slow
+         */
+        private boolean deliver(long end, boolean paced) {
+            SlowConsumerPolicy policy = topicPolicies.getOrDefault(topic, slowConsumerPolicy);
+            next = Math.max(next, log.startOffset()); // Retention may have deleted where we were
+            for (; next < end && !(paced && isPaused()); next++) {
+                SharedMessageFrame shared = log.read(next);
+                if (shared == null || selector != null && !selector.matches(shared.fields())) {
+                    continue;
+                }
+                boolean sent = window != null
+                        ? window.offer(topic, shared, policy)
+                        : handler.sendEncoded(new OutboundFrame(topic, shared.forSubscription(subscriptionId)), policy)
+                                || policy != SlowConsumerPolicy.DISCONNECT;
+                if (!sent) {
+                    disconnectSlowConsumer(connectionId, handler, topic);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isPaused() {
+            return handler.isSaturated() || window != null && window.isBacklogged();
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Keeps the messages of the destinations the log selects, so subscribers can replay them.
+     */
+    public void setMessageLog(MessageLog log) {
+        messageLog = log;
+    }
+
+    /**
+     * Keeps the last messages of the destinations, every new subscriber gets them first.
+     */
+    public void setRetainedMessages(RetainedMessages retained) {
+        retainedMessages = retained;
     }
 
     @Override
     public void unsubscribe(String topic, int connectionId) {
-        List<Integer> subscribers = topics.get(topic);
-        if (subscribers != null) {
-            subscribers.remove(Integer.valueOf(connectionId)); // Remove the subscriber from the list
-            if (subscribers.isEmpty()) {
-                topics.remove(topic); // Remove the channel if it has no subscribers
+        Integer replaying = cancelReplay(connectionId, topic);
+        Map<String, Integer> joined = subscriptionsOf.get(connectionId);
+        Integer subscriptionId = joined == null ? null : joined.remove(topic);
+        removeSubscriber(topic, connectionId);
+        Integer ended = subscriptionId != null ? subscriptionId : replaying; // Not joined yet while replaying
+        Map<Integer, MessageSelector> selectors = selectorsOf.get(connectionId);
+        if (selectors != null && ended != null) {
+            selectors.remove(ended);
+        }
+        Map<Integer, AckWindow<T>> windows = windowsOf.get(connectionId);
+        if (windows != null) {
+            for (AckWindow<T> window : windows.values()) {
+                if (window.destination().equals(topic) && windows.remove(window.subscriptionId(), window)) {
+                    closeWindow(window);
+                }
             }
+            windowsOf.computeIfPresent(connectionId, (k, ofConnection) -> ofConnection.isEmpty() ? null : ofConnection);
         }
     }
 
     @Override
     public void disconnect(int connectionId) {
-        clients.remove(connectionId);
-        for (List<Integer> list : topics.values()) {
-            list.remove(Integer.valueOf(connectionId));
+        clients.retire(connectionId);
+        String user = userOf.remove(connectionId);
+        if (user != null) {
+            sessions.remove(user, connectionId);
+        }
+        Map<String, Replay> catchingUp = replays.remove(connectionId);
+        if (catchingUp != null) {
+            for (Replay replay : catchingUp.values()) {
+                replay.cancel();
+            }
+        }
+        // Only the topics this client joined, not every topic on the server
+        Map<String, Integer> joined = subscriptionsOf.remove(connectionId);
+        if (joined != null) {
+            for (String topic : joined.keySet()) {
+                removeSubscriber(topic, connectionId);
+            }
+        }
+        selectorsOf.remove(connectionId);
+        Map<Integer, AckWindow<T>> windows = windowsOf.remove(connectionId);
+        if (windows != null) {
+            for (AckWindow<T> window : windows.values()) {
+                closeWindow(window); // Also releases the publishers held for this client
+            }
+        }
+    }
+
+    // Called once the subscriber was removed, so a queue gives what it did not acknowledge to the others
+    private void closeWindow(AckWindow<T> window) {
+        List<SharedMessageFrame> unacknowledged = window.close();
+        if (WorkQueue.isQueue(window.destination())) {
+            requeue(window.destination(), unacknowledged);
+        }
+        // Every other subscriber of a topic has its own copy of what was not acknowledged
+    }
+
+    private void removeSubscriber(String topic, int connectionId) {
+        boolean removed;
+        if (SubscriptionTrie.isPattern(topic)) {
+            removed = patterns.remove(topic, connectionId);
+        } else {
+            boolean[] emptied = new boolean[1];
+            topics.computeIfPresent(topic, (k, subscribers) -> {
+                subscribers.remove(connectionId); // Remove the subscriber from the topic
+                emptied[0] = subscribers.isEmpty();
+                return emptied[0] ? null : subscribers; // Remove the channel if it has no subscribers
+            });
+            removed = emptied[0];
+        }
+        if (removed) {
+            routesVersion.incrementAndGet();
+            interestChanged(topic);
         }
     }
 
@@ -57,18 +973,107 @@ public class ConnectionsImpl<T> implements Connections<T> {
         clients.put(connectionId, handler);
     }
 
+    @Override
+    public boolean admitLogin(String username) {
+        RateLimiter limiter = loginLimiter;
+        return limiter == null || limiter.tryAcquire(username) == 0;
+    }
+
+    @Override
+    public boolean admitPublish(int connectionId, String channel) {
+        RateLimiter perUser = publishLimiter;
+        RateLimiter perDestination = destinationLimiter;
+        if (perUser == null && perDestination == null) {
+            return true;
+        }
+        String user = userOf.get(connectionId);
+        if (rateLimitAction == RateLimitAction.REJECT) {
+            return (perUser == null || user == null || perUser.tryAcquire(user) == 0)
+                    && (perDestination == null || perDestination.tryAcquire(channel) == 0);
+        }
+        // Borrowed tokens: a client that keeps going too fast waits longer each time
+        long wait = Math.max(perUser == null || user == null ? 0 : perUser.acquire(user),
+                perDestination == null ? 0 : perDestination.acquire(channel));
+        ConnectionHandler<T> handler = clients.get(connectionId);
+        if (wait > 0 && handler != null) {
+            handler.pauseReads(wait, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Limits the logins of each user, checked before the password is so a storm costs no hashing.
+     *
+     * @param limiter null for no limit
+     */
+    public void setLoginLimit(RateLimiter limiter) {
+        loginLimiter = limiter;
+    }
+
+    /**
+     * Limits the publishes of each user, over every destination.
+     *
+     * @param limiter null for no limit
+     */
+    public void setPublishLimit(RateLimiter limiter) {
+        publishLimiter = limiter;
+    }
+
+    /**
+     * Limits the publishes on each destination, whoever the publishers.
+     *
+     * @param limiter null for no limit
+     */
+    public void setDestinationLimit(RateLimiter limiter) {
+        destinationLimiter = limiter;
+    }
+
+    public void setRateLimitAction(RateLimitAction action) {
+        rateLimitAction = action;
+    }
+
+    /**
+     * Sets where users are kept, in memory only by default. Must be called before clients connect.
+     */
+    public void setCredentialStore(CredentialStore store) {
+        credentials = store;
+    }
+
     @Override
     public boolean registerUser(String username, String password) {
-        return users.putIfAbsent(username, password) == null;
+        return credentials.register(username, password);
     }
 
     @Override
     public boolean isPasswordCorrect(String username, String password) {
-        return password.equals(users.get(username));
+        return credentials.verify(username, password);
     }
 
     @Override
     public boolean isUserRegistered(String username) {
-        return users.containsKey(username);
+        return credentials.isRegistered(username);
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) {
+        return credentials.authenticate(username, password);
+    }
+
+    /**
+     * The session is taken atomically: of two connections logging in as the same user at once, only one gets it.
+     */
+    @Override
+    public boolean startSession(String username, int connectionId) {
+        userOf.put(connectionId, username); // First, so a disconnect from now on gives the session back
+        if (sessions.putIfAbsent(username, connectionId) != null) {
+            userOf.remove(connectionId);
+            return false;
+        }
+        if (clients.isRetired(connectionId)) { // Closed before we took it, its disconnect may have missed it
+            userOf.remove(connectionId);
+            sessions.remove(username, connectionId);
+            return false;
+        }
+        return true;
     }
 }
\ No newline at end of file
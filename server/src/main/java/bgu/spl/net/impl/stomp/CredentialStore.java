@@ -0,0 +1,32 @@
+package bgu.spl.net.impl.stomp;
+
+/**
+ * Where the server keeps the users allowed to log in and what proves who they are.
+ * Implementations are thread safe.
+ */
+public interface CredentialStore {
+
+    /**
+     * @return false if the user is registered already, nothing changed then
+     * @throws IllegalArgumentException if the store cannot keep a name that long
+     * @throws java.io.UncheckedIOException if the registration could not be persisted, the user is not registered then
+     */
+    boolean register(String username, String password);
+
+    boolean isRegistered(String username);
+
+    /**
+     * @return false if the user is not registered or the password is not theirs
+     */
+    boolean verify(String username, String password);
+
+    /**
+     * Registers the user on their first login, else checks their password, as one step:
+     * two first logins of a user racing with different passwords cannot both succeed.
+     *
+     * @throws java.io.UncheckedIOException like {@link #register}
+     */
+    default boolean authenticate(String username, String password) {
+        return register(username, password) || verify(username, password);
+    }
+}
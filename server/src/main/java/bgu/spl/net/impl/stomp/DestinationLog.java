@@ -0,0 +1,180 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The append-only log of one destination: segments ordered by base offset, the last one being appended to.
+ * Offsets number the destination's messages from 0 and are never reused, even once retention deleted them.
+ * Appends, rolls and retention hold this log's lock; readers use the segments array without locking.
+ */
+class DestinationLog {
+
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile LogSegment[] segments;
+    private volatile long durableOffset; // Every offset below it was forced to the disk
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    DestinationLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LogSegment.LOG_SUFFIX)) {
+            for (Path file : files) {
+                long baseOffset = LogSegment.baseOffsetOf(file);
+                if (baseOffset >= 0) {
+                    baseOffsets.add(baseOffset);
+                }
+            }
+        }
+        baseOffsets.sort(null);
+        if (baseOffsets.isEmpty()) {
+            baseOffsets.add(0L);
+        }
+        LogSegment[] recovered = new LogSegment[baseOffsets.size()];
+        for (int i = 0; i < recovered.length; i++) {
+            recovered[i] = LogSegment.open(directory, baseOffsets.get(i), segmentBytes);
+            lastTimestamp = Math.max(lastTimestamp, recovered[i].lastTimestamp());
+        }
+        segments = recovered;
+        durableOffset = endOffset();
+    }
+
+    /**
+     * Appends the message, it is then given the offset {@link #endOffset()} had before the call.
+     * Callers that fan the message out hold this log's lock around both, so offsets follow delivery order.
+     */
+    synchronized void append(SharedMessageFrame frame) {
+        // Timestamps never go back, so they can be searched like offsets
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        LogSegment active = segments[segments.length - 1];
+        if (!active.append(timestamp, frame.head(), frame.tail())) {
+            if (active.isEmpty()) {
+                throw new IllegalArgumentException("a message of " + (frame.head().remaining() + frame.tail().remaining())
+                        + " bytes does not fit in a log segment of " + segmentBytes + " bytes");
+            }
+            active = roll(active.endOffset());
+            active.append(timestamp, frame.head(), frame.tail());
+        }
+        lastTimestamp = timestamp;
+    }
+
+    private LogSegment roll(long baseOffset) {
+        try {
+            LogSegment next = LogSegment.open(directory, baseOffset, segmentBytes);
+            LogSegment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[grown.length - 1] = next;
+            segments = grown;
+            return next;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    long endOffset() {
+        LogSegment[] current = segments;
+        return current[current.length - 1].endOffset();
+    }
+
+    /**
+     * @return the oldest offset still in the log
+     */
+    long startOffset() {
+        return segments[0].baseOffset();
+    }
+
+    /**
+     * @return the first offset logged at or after the time, {@link #endOffset()} if there is none
+     */
+    long offsetAt(long timestampMillis) {
+        for (LogSegment segment : segments) {
+            if (!segment.isEmpty() && segment.lastTimestamp() >= timestampMillis) {
+                return segment.offsetAt(timestampMillis);
+            }
+        }
+        return endOffset();
+    }
+
+    /**
+     * @return the message at the offset, null if it was deleted or not written yet
+     */
+    SharedMessageFrame read(long offset) {
+        LogSegment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) { // The last segment whose base offset is not after the offset
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].baseOffset() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        LogSegment segment = current[low];
+        if (offset < segment.baseOffset() || offset >= segment.endOffset()) {
+            return null;
+        }
+        return segment.read(offset);
+    }
+
+    /**
+     * Forces every message appended so far to the disk.
+     */
+    void flush() {
+        long target = endOffset();
+        for (LogSegment segment : segments) {
+            segment.flush();
+        }
+        durableOffset = Math.max(durableOffset, target);
+    }
+
+    long durableOffset() {
+        return durableOffset;
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size or they only hold messages older than the age.
+     * The segment being appended to is always kept.
+     *
+     * @param maxBytes 0 for no size limit
+     * @param minTimestamp messages logged before it may be deleted, Long.MIN_VALUE for no age limit
+     */
+    void applyRetention(long maxBytes, long minTimestamp) throws IOException {
+        List<LogSegment> deleted = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (LogSegment segment : segments) {
+                total += segment.sizeInBytes();
+            }
+            int first = 0;
+            while (first < segments.length - 1) {
+                LogSegment oldest = segments[first];
+                boolean tooBig = maxBytes > 0 && total > maxBytes;
+                boolean tooOld = oldest.lastTimestamp() < minTimestamp;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                total -= oldest.sizeInBytes();
+                deleted.add(oldest);
+                first++;
+            }
+            if (first > 0) {
+                segments = Arrays.copyOfRange(segments, first, segments.length);
+            }
+        }
+        for (LogSegment segment : deleted) {
+            segment.delete();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Keeps salted PBKDF2 hashes of the passwords, never the passwords themselves.
+ * Given a directory, a registration counts once it is appended to a write-ahead log and forced to the disk.
+ * The log is folded into a snapshot every so often, so a restart maps one file and replays a short log.
+ * Hashing is slow on purpose, so the users who logged in lately are remembered by a cheap digest of their password:
+ * a storm of reconnects costs one SHA-256 each.
+ * A record, in the snapshot as in the log, is [length][crc][name length][name][salt length][salt][iterations][hash].
+ */
+public class HashedCredentialStore implements CredentialStore {
+
+    public static final int DEFAULT_ITERATIONS = 10000;
+    static final String SNAPSHOT_FILE = "users.snapshot";
+    static final String LOG_FILE = "users.wal";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_CACHED = 10000; // Verified users remembered, all forgotten at once past it
+    private static final int COMPACT_AFTER = 1024; // Log records that trigger a new snapshot
+    static final int MAX_NAME_BYTES = 0xFFFF; // What a record has room for
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path directory; // Null when nothing is persisted
+    private final int iterations;
+    private final Map<String, Credential> credentials = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> verified = new ConcurrentHashMap<>(); // User -> digest of the password last verified
+    private FileChannel log; // Guarded by this
+    private int logRecords = 0; // Guarded by this
+
+    /**
+     * Keeps the credentials in memory only.
+     */
+    public HashedCredentialStore() {
+        this.directory = null;
+        this.iterations = DEFAULT_ITERATIONS;
+    }
+
+    /**
+     * Loads the credentials persisted in the directory, creating it if needed.
+     *
+     * @param iterations of PBKDF2 for new passwords, those hashed before keep theirs
+     */
+    public HashedCredentialStore(Path directory, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("the number of hash iterations must be positive");
+        }
+        this.directory = directory;
+        this.iterations = iterations;
+        try {
+            Files.createDirectories(directory);
+            load(directory.resolve(SNAPSHOT_FILE));
+            Path logFile = directory.resolve(LOG_FILE);
+            long valid = load(logFile);
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            log.truncate(valid); // A record torn by a crash was never acknowledged
+            log.position(valid);
+            if (valid > 0) {
+                synchronized (this) {
+                    compact();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean register(String username, String password) {
+        if (username.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("user name longer than " + MAX_NAME_BYTES + " bytes");
+        }
+        Credential credential = Credential.of(password, iterations);
+        if (credentials.putIfAbsent(username, credential) != null) {
+            return false;
+        }
+        try {
+            persist(username, credential);
+        } catch (UncheckedIOException e) {
+            credentials.remove(username, credential); // Not registered after all, a later login tries again
+            throw e;
+        }
+        remember(username, credential, password);
+        return true;
+    }
+
+    @Override
+    public boolean isRegistered(String username) {
+        return credentials.containsKey(username);
+    }
+
+    @Override
+    public boolean verify(String username, String password) {
+        Credential credential = credentials.get(username);
+        if (credential == null) {
+            return false;
+        }
+        byte[] known = verified.get(username);
+        if (known != null && MessageDigest.isEqual(known, credential.digest(password))) {
+            return true;
+        }
+        if (!credential.matches(password)) {
+            return false;
+        }
+        remember(username, credential, password);
+        return true;
+    }
+
+    // Hashing a password for nothing is what we want to avoid, so known users are never hashed twice
+    @Override
+    public boolean authenticate(String username, String password) {
+        if (!credentials.containsKey(username) && register(username, password)) {
+            return true;
+        }
+        return verify(username, password);
+    }
+
+    private void remember(String username, Credential credential, String password) {
+        if (verified.size() >= MAX_CACHED) {
+            verified.clear();
+        }
+        verified.put(username, credential.digest(password));
+    }
+
+    /**
+     * @throws UncheckedIOException if the record could not be forced to the log, which is then as it was before
+     */
+    private synchronized void persist(String username, Credential credential) {
+        if (directory == null) {
+            return;
+        }
+        ByteBuffer record = encode(username, credential);
+        long start = 0;
+        try {
+            start = log.position();
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            try {
+                log.truncate(start); // A torn record would hide the ones appended after it from the next load
+                log.position(start);
+            } catch (IOException ignored) {
+                // The load stops at the torn record anyway
+            }
+            throw new UncheckedIOException(e);
+        }
+        if (++logRecords >= COMPACT_AFTER) {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace(); // The registration is in the log already, the next one tries again
+            }
+        }
+    }
+
+    /**
+     * Writes every credential to a new snapshot, which replaces the old one atomically, and empties the log.
+     * A user registered meanwhile may be in both, loading keeps the first record of a user.
+     */
+    private void compact() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Credential> entry : credentials.entrySet()) {
+                ByteBuffer record = encode(entry.getKey(), entry.getValue());
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.truncate(0);
+        log.position(0);
+        logRecords = 0;
+    }
+
+    /**
+     * Maps the file and adds its records up to the first incomplete or corrupt one.
+     *
+     * @return the length of the records read
+     */
+    private long load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (data.remaining() >= RECORD_HEADER) {
+                int start = data.position();
+                int length = data.getInt();
+                int crc = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    data.position(start);
+                    break;
+                }
+                ByteBuffer record = data.slice();
+                record.limit(length);
+                CRC32 check = new CRC32();
+                check.update(record.duplicate());
+                if ((int) check.getValue() != crc) {
+                    data.position(start);
+                    break;
+                }
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                byte[] salt = new byte[record.get() & 0xFF];
+                record.get(salt);
+                int iterations = record.getInt();
+                byte[] hash = new byte[record.remaining()];
+                record.get(hash);
+                credentials.putIfAbsent(new String(name, StandardCharsets.UTF_8), new Credential(salt, iterations, hash));
+                data.position(start + RECORD_HEADER + length);
+            }
+            return data.position();
+        }
+    }
+
+    private static ByteBuffer encode(String username, Credential credential) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("user name too long: " + name.length + " bytes");
+        }
+        int length = 2 + name.length + 1 + credential.salt.length + 4 + credential.hash.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.putInt(length);
+        record.putInt(0); // The crc, once the rest is written
+        record.putShort((short) name.length);
+        record.put(name);
+        record.put((byte) credential.salt.length);
+        record.put(credential.salt);
+        record.putInt(credential.iterations);
+        record.put(credential.hash);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static final class Credential {
+        private final byte[] salt;
+        private final int iterations;
+        private final byte[] hash;
+
+        private Credential(byte[] salt, int iterations, byte[] hash) {
+            this.salt = salt;
+            this.iterations = iterations;
+            this.hash = hash;
+        }
+
+        private static Credential of(String password, int iterations) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            return new Credential(salt, iterations, pbkdf2(password, salt, iterations, HASH_BITS));
+        }
+
+        private boolean matches(String password) {
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations, hash.length * 8));
+        }
+
+        // What the cache compares: salted, so it tells nothing about users with the same password
+        private byte[] digest(String password) {
+            MessageDigest digest = sha256.get();
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bits) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a destination's message log, mapped in memory, with a mapped offset index beside it.
+ * A record is [length][crc][timestamp][head length][head][tail], the head and tail being those of a
+ * {@link SharedMessageFrame}, so a logged message is replayed straight from the mapping.
+ * The length is written last: a record with a zero length was never completed and ends the segment.
+ * Pages are written back in no particular order, so after a crash the length may be there without the rest:
+ * the crc of what follows it tells, and recovery stops at the first record that does not match.
+ * One thread appends at a time (the destination log's lock), any thread may read the records already counted.
+ */
+class LogSegment {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    private static final int RECORD_HEADER = 20;
+    private static final int CHECKED_FROM = 8; // The crc covers the record from the timestamp on
+    private static final int INDEX_ENTRY = 4; // Position of the record in the segment
+    private static final int MIN_RECORD = 64; // Sizes the index, smaller records may fill it before the segment
+
+    private final long baseOffset;
+    private final Path logFile;
+    private final Path indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int capacity;
+    private int size = 0; // Write position, only used by the appending thread
+    private volatile int count = 0; // Records readers may see
+    private volatile int flushedCount = 0;
+    private volatile long firstTimestamp = Long.MAX_VALUE;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+
+    private LogSegment(Path directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.capacity = capacity;
+        this.logFile = directory.resolve(fileName(baseOffset) + LOG_SUFFIX);
+        this.indexFile = directory.resolve(fileName(baseOffset) + INDEX_SUFFIX);
+        this.data = map(logFile, capacity);
+        this.index = map(indexFile, capacity / MIN_RECORD * INDEX_ENTRY);
+    }
+
+    /**
+     * Opens the segment starting at the offset, creating its files if needed and recovering the records
+     * already in them.
+     */
+    static LogSegment open(Path directory, long baseOffset, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseOffset, capacity);
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * @return the base offset encoded in a segment file name, or -1 if it is not a segment file
+     */
+    static long baseOffsetOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String fileName(long baseOffset) {
+        return String.format("%020d", baseOffset);
+    }
+
+    private static MappedByteBuffer map(Path file, int length) throws IOException {
+        // The mapping stays valid once the channel is closed, so no descriptor is kept per segment
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        int recovered = 0;
+        while (position + RECORD_HEADER <= capacity && (recovered + 1) * INDEX_ENTRY <= index.capacity()) {
+            int length = data.getInt(position);
+            if (length < RECORD_HEADER - 4 || position + 4 + length > capacity
+                    || data.getInt(position + 4) != checksum(position, 4 + length)) {
+                break;
+            }
+            long timestamp = data.getLong(position + 8);
+            firstTimestamp = Math.min(firstTimestamp, timestamp);
+            lastTimestamp = timestamp;
+            index.putInt(recovered * INDEX_ENTRY, position);
+            recovered++;
+            position += 4 + length;
+        }
+        size = position;
+        count = recovered;
+        flushedCount = recovered;
+        clearFrom(position);
+    }
+
+    /**
+     * Zeroes what a crash left past the last whole record. New records overwrite it from there, and an old
+     * record that happened to start right after a shorter new one would otherwise be replayed as live.
+     * The rest of a segment is usually a hole of the file, reading it costs no I/O, only what is not zero is written.
+     */
+    private void clearFrom(int position) {
+        boolean cleared = false;
+        for (; position < capacity && position % 8 != 0; position++) {
+            if (data.get(position) != 0) {
+                data.put(position, (byte) 0);
+                cleared = true;
+            }
+        }
+        for (; position + 8 <= capacity; position += 8) {
+            if (data.getLong(position) != 0) {
+                data.putLong(position, 0);
+                cleared = true;
+            }
+        }
+        for (; position < capacity; position++) {
+            if (data.get(position) != 0) {
+                data.put(position, (byte) 0);
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            data.force();
+        }
+    }
+
+    /**
+     * @return false if the record does not fit, the log then rolls to a new segment
+     */
+    boolean append(long timestamp, ByteBuffer head, ByteBuffer tail) {
+        int headLength = head.remaining();
+        int recordLength = RECORD_HEADER + headLength + tail.remaining();
+        if (size + recordLength > capacity || (count + 1) * INDEX_ENTRY > index.capacity()) {
+            return false;
+        }
+        ByteBuffer target = data.duplicate();
+        target.position(size + CHECKED_FROM);
+        target.putLong(timestamp);
+        target.putInt(headLength);
+        target.put(head.duplicate());
+        target.put(tail.duplicate());
+        data.putInt(size + 4, checksum(size, recordLength));
+        data.putInt(size, recordLength - 4); // Completes the record
+        index.putInt(count * INDEX_ENTRY, size);
+        size += recordLength;
+        if (count == 0) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+        count = count + 1; // Publishes the record to readers
+        return true;
+    }
+
+    private int checksum(int position, int recordLength) {
+        ByteBuffer checked = data.duplicate();
+        checked.limit(position + recordLength).position(position + CHECKED_FROM);
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the logged message, as read-only views of the mapping
+     */
+    SharedMessageFrame read(long offset) {
+        int position = index.getInt((int) (offset - baseOffset) * INDEX_ENTRY);
+        int length = data.getInt(position);
+        int headLength = data.getInt(position + 16);
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit(position + 4 + length).position(position + RECORD_HEADER);
+        ByteBuffer head = view.slice();
+        head.limit(headLength);
+        view.position(position + RECORD_HEADER + headLength);
+        return new SharedMessageFrame(head, view.slice());
+    }
+
+    long timestampOf(long offset) {
+        int position = index.getInt((int) (offset - baseOffset) * INDEX_ENTRY);
+        return data.getLong(position + 8);
+    }
+
+    /**
+     * @return the first offset of this segment whose timestamp is not before the given one, or its end offset
+     */
+    long offsetAt(long timestamp) {
+        long low = baseOffset;
+        long high = endOffset();
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timestampOf(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Writes the counted records to the disk.
+     */
+    void flush() {
+        int toFlush = count;
+        if (toFlush > flushedCount) {
+            data.force();
+            index.force();
+            flushedCount = toFlush;
+        }
+    }
+
+    void delete() throws IOException {
+        // The mapping itself is released once replays still reading it are done with it
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(indexFile);
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long endOffset() {
+        return baseOffset + count;
+    }
+
+    long sizeInBytes() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+}
@@ -2,44 +2,101 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 
 public class MessageEncoderDecoderImp implements MessageEncoderDecoder<StompFrame> {
     
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final int INITIAL_HEADER_SLOTS = 8; // Room for four headers before growing
+    private static final byte[] EMPTY = new byte[0];
+
+    // Commands and header names of STOMP 1.2 that are shared instead of allocated per frame
+    private static final String[] KNOWN_NAMES = {
+        "CONNECT", "STOMP", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "DISCONNECT", "ACK", "NACK",
+        "BEGIN", "COMMIT", "ABORT", "CONNECTED", "MESSAGE", "RECEIPT", "ERROR",
+        "accept-version", "host", "login", "passcode", "heart-beat", "destination", "id",
+        "receipt", "receipt-id", "subscription", "message-id", "ack", "transaction",
+        "content-type", "content-length", "version", "message"
+    };
+    private static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+
+    static {
+        for (int k = 0; k < KNOWN_NAMES.length; k++) {
+            KNOWN_NAME_BYTES[k] = KNOWN_NAMES[k].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
     private byte[] bytes = new byte[1 << 10]; 
     private int len = 0; 
 
     @Override
     public StompFrame decodeNextByte(byte nextByte) {
+        // EOLs between frames are heart-beats, they are not part of any frame
+        if (len == 0 && (nextByte == '\n' || nextByte == '\r')) {
+            return null;
+        }
         // If we encounter the termination character '\u0000', decode the message
         if (nextByte == '\u0000') {
-            String message = popString(); 
-            return parseFrame(message);
+            return parseFrame();
         }
         // Add the byte to the buffer
         pushByte(nextByte);
         return null; // Message is not complete yet
     }
 
+    @Override
+    public List<StompFrame> decode(ByteBuffer buffer) {
+        List<StompFrame> frames = Collections.emptyList();
+        while (buffer.hasRemaining()) {
+            if (len == 0 && isEol(buffer.get(buffer.position()))) {
+                buffer.get(); // A heart-beat between frames
+                continue;
+            }
+            int start = buffer.position();
+            int end = indexOfNul(buffer, start, buffer.limit());
+            if (end < 0) {
+                // No terminator in this region, keep the partial frame for the next read
+                pushBytes(buffer, buffer.limit() - start);
+                break;
+            }
+            pushBytes(buffer, end - start);
+            buffer.get(); // Skip the '\u0000' terminator
+            if (frames.isEmpty()) {
+                frames = new ArrayList<>(2);
+            }
+            frames.add(parseFrame());
+        }
+        return frames;
+    }
+
     @Override
     public byte[] encode(StompFrame frame) {
-        // Construct the STOMP message format as a string
+        // Construct the command and headers part of the STOMP message as a string
         StringBuilder sb = new StringBuilder();
         sb.append(frame.getCommand()).append("\n"); // Add the command
 
-        for (Map.Entry<String, String> header : frame.getHeaders().entrySet()) {
-            sb.append(header.getKey()).append(":").append(header.getValue()).append("\n");
+        for (int i = 0; i < frame.getHeaderCount(); i++) {
+            sb.append(frame.getHeaderName(i)).append(":").append(frame.getHeaderValue(i)).append("\n");
         }
         sb.append("\n"); 
-        if (frame.getBody() != null && !frame.getBody().isEmpty()) {
-            sb.append(frame.getBody()).append("\n"); 
-        }
+        byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
 
-        sb.append("\u0000"); 
-        return sb.toString().getBytes(StandardCharsets.UTF_8); 
+        // The body is copied as raw bytes, so frames read off the wire are never decoded here
+        byte[] body = frame.hasBody() ? frame.getBodyBytes() : EMPTY;
+        int bodyLength = body.length == 0 ? 0 : body.length + 1;
+        byte[] result = Arrays.copyOf(head, head.length + bodyLength + 1);
+        if (bodyLength > 0) {
+            System.arraycopy(body, 0, result, head.length, body.length);
+            result[head.length + body.length] = '\n';
+        }
+        result[result.length - 1] = '\u0000'; 
+        return result; 
     }
 
     private void pushByte(byte nextByte) {
@@ -51,34 +108,144 @@ public class MessageEncoderDecoderImp implements MessageEncoderDecoder<StompFram
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        // Convert the collected bytes into a string
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
-        len = 0; // Reset the buffer
-        return result;
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len + count, bytes.length * 2));
+        }
+
+        // Copy the whole region at once instead of byte by byte
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    /**
+     * Finds the first '\u0000' in buffer[from, to) by testing eight bytes per step (SWAR).
+     * A byte of the word is zero exactly when its high bit survives the expression below,
+     * so the result is correct for either byte order of the buffer.
+     */
+    private static int indexOfNul(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = buffer.getLong(i);
+            long zeros = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+            if (zeros != 0) {
+                int bit = buffer.order() == ByteOrder.LITTLE_ENDIAN
+                        ? Long.numberOfTrailingZeros(zeros)
+                        : Long.numberOfLeadingZeros(zeros);
+                return i + (bit >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == '\u0000') {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private StompFrame parseFrame(String message) {
-        String[] lines = message.split("\n");
-        String command = lines[0]; 
+    private StompFrame parseFrame() {
+        int end = len;
+        len = 0; // Reset the buffer, the frame is parsed in place in a single pass
+
+        // Skip EOLs that may come before a frame
+        int pos = 0;
+        while (pos < end && isEol(bytes[pos])) {
+            pos++;
+        }
+
+        int eol = indexOf((byte) '\n', pos, end);
+        String command = intern(pos, trimEnd(pos, eol));
+        pos = eol + 1;
 
         // Parse headers in "key:value" format
-        Map<String, String> headers = new HashMap<>();
-        int i = 1;
-        while (i < lines.length && !lines[i].isEmpty()) {
-            String[] headerParts = lines[i].split(":", 2); 
-            if (headerParts.length == 2) {
-                headers.put(headerParts[0].trim(), headerParts[1].trim());
+        String[] headers = new String[INITIAL_HEADER_SLOTS];
+        int headerCount = 0;
+        while (pos < end) {
+            eol = indexOf((byte) '\n', pos, end);
+            int lineEnd = eol > pos && bytes[eol - 1] == '\r' ? eol - 1 : eol;
+            if (lineEnd == pos) {
+                pos = eol + 1; // Empty line, the body starts after it
+                break;
+            }
+            int colon = indexOf((byte) ':', pos, lineEnd);
+            if (colon < lineEnd) {
+                if (headerCount * 2 == headers.length) {
+                    headers = Arrays.copyOf(headers, headers.length * 2);
+                }
+                int nameStart = trimStart(pos, colon);
+                int valueStart = trimStart(colon + 1, lineEnd);
+                headers[headerCount * 2] = intern(nameStart, trimEnd(nameStart, colon));
+                headers[headerCount * 2 + 1] = decodeString(valueStart, trimEnd(valueStart, lineEnd));
+                headerCount++;
             }
-            i++;
+            pos = eol + 1;
         }
 
-        // Parse the body (if it exists)
-        StringBuilder bodyBuilder = new StringBuilder();
-        for (i = i + 1; i < lines.length; i++) {
-            bodyBuilder.append(lines[i]).append("\n");
+        // Keep the body (if it exists) as bytes, it is decoded only when read
+        byte[] body = EMPTY;
+        if (pos < end) {
+            int bodyStart = trimStart(pos, end);
+            int bodyEnd = trimEnd(bodyStart, end);
+            if (bodyStart < bodyEnd) {
+                body = Arrays.copyOfRange(bytes, bodyStart, bodyEnd);
+            }
+        }
+        return new StompFrame(command, headers, headerCount, body);
+    }
+
+    private static boolean isEol(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // Same notion of whitespace as String.trim()
+    private int trimStart(int from, int to) {
+        while (from < to && (bytes[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (bytes[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private String decodeString(int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the shared String instance for well-known commands and header names,
+     * so they are not allocated per frame and can be compared by identity.
+     */
+    private String intern(int from, int to) {
+        int length = to - from;
+        for (int k = 0; k < KNOWN_NAMES.length; k++) {
+            byte[] known = KNOWN_NAME_BYTES[k];
+            if (known.length == length && matches(known, from)) {
+                return KNOWN_NAMES[k];
+            }
+        }
+        return decodeString(from, to);
+    }
+
+    private boolean matches(byte[] known, int from) {
+        for (int i = 0; i < known.length; i++) {
+            if (bytes[from + i] != known[i]) {
+                return false;
+            }
         }
-        String body = bodyBuilder.toString().trim();
-        return new StompFrame(command, headers, body);
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the message-id of published messages: 64-bit, so they never wrap, and unique across the server.
+ * In a cluster, messages keep the id their node gave them, so each node numbers from its own range:
+ * the node's number is in the high bits, which leaves 2^48 ids to each node.
+ * Each thread leases a block of ids and hands them out without touching shared memory,
+ * so publishing threads only meet on the shared counter once per block.
+ * Ids only increase within a thread, they are not ordered across threads: a thread that leased a block
+ * and went quiet still hands out ids from it, however many blocks the others took since.
+ */
+final class MessageIds {
+
+    static final int MAX_NODE = 0x7FFF; // So ids stay positive
+    private static final int NODE_SHIFT = 48;
+    private static final int BLOCK = 1024;
+    private static final AtomicLong nextBlock = new AtomicLong(0);
+    private static final ThreadLocal<Lease> lease = ThreadLocal.withInitial(Lease::new);
+
+    private MessageIds() {
+    }
+
+    /**
+     * Moves the ids to the node's range, before any is handed out.
+     *
+     * @param node this node's number in the cluster, different on every node
+     */
+    static void setNode(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("node number " + node + " is not between 0 and " + MAX_NODE);
+        }
+        if (!nextBlock.compareAndSet(0, (long) node << NODE_SHIFT)) {
+            throw new IllegalStateException("message ids are already handed out");
+        }
+    }
+
+    static long next() {
+        Lease current = lease.get();
+        if (current.next == current.end) {
+            current.next = nextBlock.getAndAdd(BLOCK);
+            current.end = current.next + BLOCK;
+        }
+        return ++current.next; // Ids start at 1, like the counter they replace
+    }
+
+    private static final class Lease {
+        private long next; // Last id handed out
+        private long end; // Last id of the block
+    }
+}
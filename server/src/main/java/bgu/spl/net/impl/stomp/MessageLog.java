@@ -0,0 +1,215 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Durable logs of the destinations selected for logging, one directory of memory-mapped segments each,
+ * nothing being logged until a destination or pattern is selected,
+ * so clients can catch up on what was published while they were away.
+ * A background thread forces the logs to the disk according to the {@link FsyncPolicy} and applies retention.
+ */
+public class MessageLog {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+
+    public enum FsyncPolicy {
+        /** The operating system writes the mapped pages back when it wants to */
+        NONE,
+        /** The logs are forced to the disk every fsync interval */
+        INTERVAL,
+        /** A publish returns only once its message is on the disk, publishes waiting together share one force */
+        GROUP
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private static final int MAX_DECISIONS = 100000; // Destinations whose selection is remembered, all forgotten at once past it
+
+    private final List<String> patterns = new CopyOnWriteArrayList<>(); // Destinations to log
+    private final Map<String, Boolean> selected = new ConcurrentHashMap<>(); // Destination -> whether a pattern matches it
+    private final Map<String, DestinationLog> logs = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private boolean flushRequested = false; // Guarded by flushLock
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    /**
+     * @param retentionBytes per destination, 0 to keep every segment whatever the size
+     * @param retentionMillis 0 to keep every segment whatever its age
+     */
+    public MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis,
+                      FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        if (segmentBytes <= 0 || retentionBytes < 0 || retentionMillis < 0 || fsyncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("segment size and fsync interval must be positive, retention not negative");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        recoverLogs();
+        this.flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Logs written before a restart are opened right away, so retention applies to them too
+    private void recoverLogs() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path subdirectory : subdirectories) {
+                String destination = URLDecoder.decode(subdirectory.getFileName().toString(), "UTF-8");
+                logs.put(destination, new DestinationLog(subdirectory, segmentBytes));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Logs the destinations matching the pattern (wildcards as in SUBSCRIBE).
+     */
+    public void logDestinations(String pattern) {
+        patterns.add(pattern);
+        selected.clear();
+    }
+
+    /**
+     * @return the log of the destination, opened on first use, or null if the destination is not logged
+     */
+    DestinationLog forDestination(String destination) {
+        if (!isLogged(destination)) {
+            return null;
+        }
+        DestinationLog log = logs.get(destination);
+        if (log != null) {
+            return log;
+        }
+        return logs.computeIfAbsent(destination, k -> {
+            try {
+                return new DestinationLog(directory.resolve(URLEncoder.encode(k, "UTF-8")), segmentBytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Matched once per destination, not on every publish
+    private boolean isLogged(String destination) {
+        Boolean known = selected.get(destination);
+        if (known != null) {
+            return known;
+        }
+        boolean logged = false;
+        for (String pattern : patterns) {
+            if (SubscriptionTrie.matches(pattern, destination)) {
+                logged = true;
+                break;
+            }
+        }
+        if (selected.size() >= MAX_DECISIONS) {
+            selected.clear();
+        }
+        selected.put(destination, logged);
+        return logged;
+    }
+
+    /**
+     * With {@link FsyncPolicy#GROUP}, waits until the message at the offset is on the disk.
+     */
+    void awaitDurable(DestinationLog log, long offset) {
+        if (fsyncPolicy != FsyncPolicy.GROUP) {
+            return;
+        }
+        synchronized (flushLock) {
+            flushRequested = true;
+            flushLock.notifyAll();
+            boolean interrupted = false;
+            while (log.durableOffset() <= offset && running) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        long nextRetention = System.currentTimeMillis() + fsyncIntervalMillis;
+        while (running) {
+            synchronized (flushLock) {
+                if (!flushRequested) {
+                    try {
+                        flushLock.wait(fsyncIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                flushRequested = false;
+            }
+            // Publishes arriving while we force wait for the next round, that is the group in group commit
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                for (DestinationLog log : logs.values()) {
+                    log.flush();
+                }
+            }
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+            if ((retentionBytes > 0 || retentionMillis > 0) && System.currentTimeMillis() >= nextRetention) {
+                applyRetention();
+                nextRetention = System.currentTimeMillis() + fsyncIntervalMillis;
+            }
+        }
+    }
+
+    private void applyRetention() {
+        long minTimestamp = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        for (DestinationLog log : logs.values()) {
+            try {
+                log.applyRetention(retentionBytes, minTimestamp);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Forces every log to the disk and stops the background thread.
+     */
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        for (DestinationLog log : logs.values()) {
+            log.flush();
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The "selector" of a subscription: a filter on the fields of each message, compiled once into predicates.
+ * The language is a small SQL-like one:
+ * <pre>
+ *   user = 'alice' AND (city IN ('Berlin', 'Munich') OR "event name" &lt;&gt; 'goal') AND NOT "date time" &lt; 1700000000
+ * </pre>
+ * Names are bare words or double-quoted, values single-quoted strings or numbers. Comparisons are
+ * =, &lt;&gt; (or !=), &lt;, &lt;=, &gt;, &gt;=, IN (...), IS NULL and IS NOT NULL, combined with AND, OR, NOT and parentheses.
+ * Numbers compare numerically, a field that is missing or not a number makes the comparison false.
+ * Selectors with the same text compile to the same instance while it is among those used last,
+ * and the subscriptions sharing a text are evaluated once either way.
+ * NOT and parentheses nest at most {@value #MAX_DEPTH} deep, so a hostile selector cannot exhaust the stack.
+ */
+final class MessageSelector {
+
+    private static final int MAX_CACHED = 1024;
+    private static final int MAX_DEPTH = 64;
+    // Guarded by itself, access ordered: past the cap the selector used least recently is forgotten
+    private static final Map<String, MessageSelector> compiled = new LinkedHashMap<String, MessageSelector>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MessageSelector> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private final String text;
+    private final Predicate<Map<String, String>> predicate;
+
+    private MessageSelector(String text, Predicate<Map<String, String>> predicate) {
+        this.text = text;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the selector is malformed, its message says where
+     */
+    static MessageSelector compile(String text) {
+        synchronized (compiled) {
+            MessageSelector selector = compiled.get(text);
+            if (selector != null) {
+                return selector;
+            }
+        }
+        MessageSelector selector = new MessageSelector(text, new Parser(text).parse()); // Parsed outside the lock
+        synchronized (compiled) {
+            MessageSelector previous = compiled.putIfAbsent(text, selector);
+            return previous != null ? previous : selector;
+        }
+    }
+
+    /**
+     * @param fields the message's fields by name
+     */
+    boolean matches(Map<String, String> fields) {
+        return predicate.test(fields);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    // Recursive descent, one method per precedence level
+    private static final class Parser {
+        private final String text;
+        private int position = 0;
+        // NOT and parentheses open around the current position
+        private int depth = 0;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Predicate<Map<String, String>> parse() {
+            Predicate<Map<String, String>> predicate = or();
+            skipSpaces();
+            if (position < text.length()) {
+                throw error("unexpected '" + text.charAt(position) + "'");
+            }
+            return predicate;
+        }
+
+        // Terms are kept in a flat list rather than chained with Predicate.or, which would nest one call per term
+        private Predicate<Map<String, String>> or() {
+            List<Predicate<Map<String, String>>> terms = new ArrayList<>();
+            do {
+                terms.add(and());
+            } while (keyword("OR"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            return fields -> {
+                for (Predicate<Map<String, String>> term : terms) {
+                    if (term.test(fields)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private Predicate<Map<String, String>> and() {
+            List<Predicate<Map<String, String>>> terms = new ArrayList<>();
+            do {
+                terms.add(not());
+            } while (keyword("AND"));
+            if (terms.size() == 1) {
+                return terms.get(0);
+            }
+            return fields -> {
+                for (Predicate<Map<String, String>> term : terms) {
+                    if (!term.test(fields)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        private Predicate<Map<String, String>> not() {
+            if (keyword("NOT")) {
+                enter();
+                Predicate<Map<String, String>> predicate = not().negate();
+                depth--;
+                return predicate;
+            }
+            if (symbol("(")) {
+                enter();
+                Predicate<Map<String, String>> predicate = or();
+                expect(")");
+                depth--;
+                return predicate;
+            }
+            return comparison();
+        }
+
+        private void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw error("selector nested too deeply");
+            }
+        }
+
+        private Predicate<Map<String, String>> comparison() {
+            String name = name();
+            if (keyword("IS")) {
+                boolean negated = keyword("NOT");
+                if (!keyword("NULL")) {
+                    throw error("expected NULL");
+                }
+                return negated ? fields -> fields.get(name) != null : fields -> fields.get(name) == null;
+            }
+            if (keyword("IN")) {
+                expect("(");
+                Set<String> values = new HashSet<>();
+                do {
+                    values.add(value().text);
+                } while (symbol(","));
+                expect(")");
+                return fields -> values.contains(fields.get(name));
+            }
+            String operator = operator();
+            Value value = value();
+            switch (operator) {
+                case "=":
+                    return fields -> value.equalTo(fields.get(name));
+                case "<>":
+                case "!=":
+                    return fields -> fields.get(name) != null && !value.equalTo(fields.get(name));
+                default:
+                    if (value.number == null) {
+                        throw error("'" + operator + "' needs a number");
+                    }
+                    double bound = value.number;
+                    return fields -> {
+                        Double field = Value.parseNumber(fields.get(name));
+                        if (field == null) {
+                            return false;
+                        }
+                        switch (operator) {
+                            case "<":
+                                return field < bound;
+                            case "<=":
+                                return field <= bound;
+                            case ">":
+                                return field > bound;
+                            default:
+                                return field >= bound;
+                        }
+                    };
+            }
+        }
+
+        private String name() {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == '"') {
+                return quoted('"');
+            }
+            int start = position;
+            while (position < text.length() && isNameChar(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("expected a field name");
+            }
+            return text.substring(start, position);
+        }
+
+        private String operator() {
+            skipSpaces();
+            for (String operator : new String[]{"<>", "!=", "<=", ">=", "=", "<", ">"}) {
+                if (text.startsWith(operator, position)) {
+                    position += operator.length();
+                    return operator;
+                }
+            }
+            throw error("expected a comparison");
+        }
+
+        private Value value() {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == '\'') {
+                return new Value(quoted('\''), null);
+            }
+            int start = position;
+            while (position < text.length() && "+-.0123456789eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            Double number = Value.parseNumber(text.substring(start, position));
+            if (number == null) {
+                throw error("expected a quoted string or a number");
+            }
+            return new Value(text.substring(start, position), number);
+        }
+
+        // A doubled quote stands for the quote itself
+        private String quoted(char quote) {
+            StringBuilder sb = new StringBuilder();
+            position++;
+            while (true) {
+                if (position >= text.length()) {
+                    throw error("unterminated " + quote);
+                }
+                char c = text.charAt(position++);
+                if (c == quote) {
+                    if (position < text.length() && text.charAt(position) == quote) {
+                        position++;
+                    } else {
+                        return sb.toString();
+                    }
+                }
+                sb.append(c);
+            }
+        }
+
+        private boolean keyword(String keyword) {
+            skipSpaces();
+            int end = position + keyword.length();
+            if (text.regionMatches(true, position, keyword, 0, keyword.length())
+                    && (end == text.length() || !isNameChar(text.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean symbol(String symbol) {
+            skipSpaces();
+            if (text.startsWith(symbol, position)) {
+                position += symbol.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String symbol) {
+            if (!symbol(symbol)) {
+                throw error("expected '" + symbol + "'");
+            }
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+        }
+
+        private IllegalArgumentException error(String problem) {
+            return new IllegalArgumentException(problem + " at position " + position + " of the selector");
+        }
+    }
+
+    private static final class Value {
+        private final String text;
+        private final Double number; // Null for a string
+
+        private Value(String text, Double number) {
+            this.text = text;
+            this.number = number;
+        }
+
+        private boolean equalTo(String field) {
+            if (field == null) {
+                return false;
+            }
+            if (number == null) {
+                return text.equals(field);
+            }
+            Double value = parseNumber(field);
+            return value != null && value.doubleValue() == number;
+        }
+
+        private static Double parseNumber(String s) {
+            if (s == null || s.isEmpty()) {
+                return null;
+            }
+            try {
+                return Double.valueOf(s.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Splits encoded "name:value" lines into fields, the first occurrence of a name wins.
+     */
+    static void parseFields(String lines, Map<String, String> fields) {
+        int start = 0;
+        while (start < lines.length()) {
+            int end = lines.indexOf('\n', start);
+            if (end < 0) {
+                end = lines.length();
+            }
+            int colon = lines.indexOf(':', start);
+            // Indented lines belong to the field above them, such as the entries of "general information"
+            if (colon > start && colon < end && lines.charAt(start) != ' ' && lines.charAt(start) != '\t') {
+                fields.putIfAbsent(lines.substring(start, colon), lines.substring(colon + 1, end).trim());
+            }
+            start = end + 1;
+        }
+    }
+}
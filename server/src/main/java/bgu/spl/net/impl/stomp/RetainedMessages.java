@@ -0,0 +1,176 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The last messages published on each destination, kept encoded in a ring per destination,
+ * so a new subscriber starts from the current state instead of waiting for the next publish.
+ * All rings together stay under a memory cap: past it, the rings of the destinations used least recently are dropped.
+ */
+public class RetainedMessages {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final double EVICT_TO = 0.9; // Evicting a little more than needed spares an eviction per publish
+
+    private final int defaultDepth;
+    private final long maxBytes;
+    private final Map<String, Integer> depths = new ConcurrentHashMap<>(); // Overrides of the default depth
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    /**
+     * @param defaultDepth messages kept per destination, 0 to keep none unless a destination says otherwise
+     * @param maxBytes cap on the encoded size of every message kept
+     */
+    public RetainedMessages(int defaultDepth, long maxBytes) {
+        if (defaultDepth < 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("the depth must not be negative and the memory cap must be positive");
+        }
+        this.defaultDepth = defaultDepth;
+        this.maxBytes = maxBytes;
+    }
+
+    public void setDepth(String destination, int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("the depth must not be negative");
+        }
+        depths.put(destination, depth);
+    }
+
+    /**
+     * @return true if messages published on the destination are kept
+     */
+    boolean retains(String destination) {
+        return depths.getOrDefault(destination, defaultDepth) > 0;
+    }
+
+    /**
+     * Keeps the frame and takes the subscribers to deliver it to while no new subscriber can take a snapshot
+     * of the destination, so a subscriber gets each message either in its snapshot or live, never both or neither.
+     * The delivery itself runs once the ring is released, a slow fan-out does not hold up the destination's joiners.
+     *
+     * @param prepare takes the subscribers and returns the delivery to them
+     */
+    void publish(String destination, SharedMessageFrame frame, Supplier<Runnable> prepare) {
+        int depth = depths.getOrDefault(destination, defaultDepth);
+        if (depth == 0) {
+            prepare.get().run();
+            return;
+        }
+        Runnable deliver;
+        while (true) {
+            Ring ring = ringOf(destination, depth);
+            synchronized (ring) {
+                if (ring.evicted) {
+                    continue; // Evicted since we found it, a fresh ring takes its place
+                }
+                ring.add(frame);
+                deliver = prepare.get();
+            }
+            break;
+        }
+        deliver.run();
+        if (totalBytes.get() > maxBytes) {
+            evictColdest();
+        }
+    }
+
+    /**
+     * Runs the join with the messages kept for the destination, oldest first, while nothing can be published to it.
+     */
+    void join(String destination, Consumer<List<SharedMessageFrame>> join) {
+        int depth = depths.getOrDefault(destination, defaultDepth);
+        if (depth == 0) {
+            join.accept(Collections.<SharedMessageFrame>emptyList()); // Nothing kept, nothing to miss either
+            return;
+        }
+        while (true) {
+            // Created if missing, a publish racing with the join must wait for it like any other
+            Ring ring = ringOf(destination, depth);
+            synchronized (ring) {
+                if (!ring.evicted) {
+                    join.accept(ring.snapshot());
+                    return;
+                }
+            }
+        }
+    }
+
+    private Ring ringOf(String destination, int depth) {
+        return rings.computeIfAbsent(destination, k -> new Ring(depth));
+    }
+
+    private void evictColdest() {
+        synchronized (evictionLock) { // One evictor at a time, the others would only evict more than needed
+            while (totalBytes.get() > maxBytes * EVICT_TO) {
+                Map.Entry<String, Ring> coldest = null;
+                for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+                    if (coldest == null || entry.getValue().lastUsed < coldest.getValue().lastUsed) {
+                        coldest = entry;
+                    }
+                }
+                if (coldest == null) {
+                    return;
+                }
+                Ring ring = coldest.getValue();
+                synchronized (ring) {
+                    ring.evict();
+                    rings.remove(coldest.getKey(), ring); // Before publishers waiting on the ring look it up again
+                }
+            }
+        }
+    }
+
+    private final class Ring {
+        private final SharedMessageFrame[] frames;
+        private final int[] sizes;
+        private int next = 0; // Where the next frame goes
+        private int count = 0;
+        private boolean evicted = false;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Ring(int depth) {
+            frames = new SharedMessageFrame[depth];
+            sizes = new int[depth];
+        }
+
+        private void add(SharedMessageFrame frame) {
+            int size = frame.size();
+            totalBytes.addAndGet(size - sizes[next]);
+            frames[next] = frame;
+            sizes[next] = size;
+            next = (next + 1) % frames.length;
+            count = Math.min(count + 1, frames.length);
+            lastUsed = System.nanoTime();
+        }
+
+        private List<SharedMessageFrame> snapshot() {
+            List<SharedMessageFrame> snapshot = new ArrayList<>(count);
+            for (int i = count; i > 0; i--) {
+                snapshot.add(frames[(next - i + frames.length) % frames.length]);
+            }
+            lastUsed = System.nanoTime();
+            return snapshot;
+        }
+
+        private void evict() {
+            long size = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                size += sizes[i];
+                frames[i] = null;
+                sizes[i] = 0;
+            }
+            totalBytes.addAndGet(-size);
+            count = 0;
+            evicted = true;
+        }
+    }
+}
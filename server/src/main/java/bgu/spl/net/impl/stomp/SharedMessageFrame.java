@@ -0,0 +1,126 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A MESSAGE frame encoded once for every subscriber of a destination.
+ * Subscribers only differ in the value of the "subscription" header, so the frame is kept as
+ * a read-only head ending with "subscription:" and a read-only tail holding the rest of the frame.
+ * Each subscriber gets its own views of the same bytes around its subscription id.
+ */
+public class SharedMessageFrame {
+    private static final String SUBSCRIPTION = "subscription";
+
+    private final ByteBuffer head;
+    private final ByteBuffer tail;
+    private volatile Map<String, String> fields; // Parsed on first use, only selectors need them
+
+    public SharedMessageFrame(StompFrame frame) {
+        this(frame, null, null);
+    }
+
+    /**
+     * @param extraName a header added to those of the frame, or null
+     */
+    public SharedMessageFrame(StompFrame frame, String extraName, String extraValue) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(frame.getCommand()).append("\n");
+        for (int i = 0; i < frame.getHeaderCount(); i++) {
+            if (!SUBSCRIPTION.equals(frame.getHeaderName(i))) {
+                sb.append(frame.getHeaderName(i)).append(":").append(frame.getHeaderValue(i)).append("\n");
+            }
+        }
+        if (extraName != null) {
+            sb.append(extraName).append(":").append(extraValue).append("\n");
+        }
+        sb.append(SUBSCRIPTION).append(":");
+        head = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+        // Same layout as MessageEncoderDecoderImp.encode: blank line, body and its newline, terminator
+        byte[] body = frame.hasBody() ? frame.getBodyBytes() : new byte[0];
+        byte[] rest = new byte[body.length == 0 ? 3 : body.length + 4];
+        rest[0] = '\n';
+        rest[1] = '\n';
+        if (body.length > 0) {
+            System.arraycopy(body, 0, rest, 2, body.length);
+            rest[body.length + 2] = '\n';
+        }
+        rest[rest.length - 1] = '\u0000';
+        tail = ByteBuffer.wrap(rest).asReadOnlyBuffer();
+    }
+
+    /**
+     * Wraps a head and tail encoded earlier, such as those kept by the message log.
+     */
+    SharedMessageFrame(ByteBuffer head, ByteBuffer tail) {
+        this.head = head.asReadOnlyBuffer();
+        this.tail = tail.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the encoded size of the frame, without the subscription id
+     */
+    int size() {
+        return head.remaining() + tail.remaining();
+    }
+
+    ByteBuffer head() {
+        return head.duplicate();
+    }
+
+    ByteBuffer tail() {
+        return tail.duplicate();
+    }
+
+    /**
+     * @return the encoded frame for one subscriber, as views that share this frame's bytes
+     */
+    public ByteBuffer[] forSubscription(int subscriptionId) {
+        ByteBuffer id = ByteBuffer.wrap(Integer.toString(subscriptionId).getBytes(StandardCharsets.US_ASCII));
+        return new ByteBuffer[]{head.duplicate(), id, tail.duplicate()};
+    }
+
+    /**
+     * @return the headers of the frame, then the "name:value" lines of its body for names no header has
+     */
+    Map<String, String> fields() {
+        Map<String, String> parsed = fields;
+        if (parsed == null) {
+            parsed = new HashMap<>();
+            String headers = new String(bytesOf(head), StandardCharsets.UTF_8);
+            int from = headers.indexOf('\n') + 1; // After the command
+            int to = headers.length() - SUBSCRIPTION.length() - 1; // Before "subscription:"
+            MessageSelector.parseFields(headers.substring(from, Math.max(from, to)), parsed);
+            byte[] rest = bytesOf(tail); // "\n\n", the body and its newline, the terminator
+            if (rest.length > 4) {
+                MessageSelector.parseFields(new String(rest, 2, rest.length - 4, StandardCharsets.UTF_8), parsed);
+            }
+            parsed = Collections.unmodifiableMap(parsed);
+            fields = parsed; // Racing parses give equal maps
+        }
+        return parsed;
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param extraHeaders headers of this subscriber only, each as "name:value", written after the subscription header
+     */
+    public ByteBuffer[] forSubscription(int subscriptionId, String... extraHeaders) {
+        StringBuilder sb = new StringBuilder().append(subscriptionId);
+        for (String header : extraHeaders) {
+            sb.append('\n').append(header);
+        }
+        ByteBuffer headers = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return new ByteBuffer[]{head.duplicate(), headers, tail.duplicate()};
+    }
+}
@@ -1,47 +1,113 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 
 public class StompFrame {
-    private final String command; 
-    private final Map<String, String> headers; 
-    private final String body; 
-    
-  
+    private final String command;
+    private final String[] headers; // Flat name/value pairs: name at 2i, value at 2i+1
+    private final int headerCount;
+    private String body; // Decoded from bodyBytes on first access
+    private final byte[] bodyBytes;
+
+
     public StompFrame(String command, Map<String, String> headers, String body) {
+        this.command = command;
+        this.headers = new String[headers.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            this.headers[i++] = header.getKey();
+            this.headers[i++] = header.getValue();
+        }
+        this.headerCount = headers.size();
+        this.body = body;
+        this.bodyBytes = null;
+    }
+
+    /**
+     * Used by the decoder, the arrays are owned by the frame from now on.
+     * The body is kept as raw UTF-8 and only turned into a String if someone asks for it.
+     */
+    StompFrame(String command, String[] headers, int headerCount, byte[] bodyBytes) {
         this.command = command;
         this.headers = headers;
-        this.body = body; 
+        this.headerCount = headerCount;
+        this.body = null;
+        this.bodyBytes = bodyBytes;
     }
-    
+
     public String getCommand() {
         return command;
     }
-    
-    public Map<String, String> getHeaders() {
-        return headers;
+
+    /**
+     * @return the value of the first header with this name, or null if there is none
+     */
+    public String getHeader(String name) {
+        // Names coming from the decoder are interned, so most lookups end on the identity check
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            if (headers[i] == name) {
+                return headers[i + 1];
+            }
+        }
+        for (int i = 0; i < headerCount * 2; i += 2) {
+            if (headers[i].equals(name)) {
+                return headers[i + 1];
+            }
+        }
+        return null;
     }
-    
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    public String getHeaderName(int index) {
+        return headers[index * 2];
+    }
+
+    public String getHeaderValue(int index) {
+        return headers[index * 2 + 1];
+    }
+
     public String getBody() {
+        if (body == null && bodyBytes != null) {
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
         return body;
     }
+
+    /**
+     * @return the body as UTF-8 bytes, without decoding it when the frame came off the wire
+     */
+    public byte[] getBodyBytes() {
+        if (bodyBytes != null) {
+            return bodyBytes;
+        }
+        return body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean hasBody() {
+        return bodyBytes != null ? bodyBytes.length > 0 : body != null && !body.isEmpty();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(command).append("\n");
 
         // Add headers
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            sb.append(entry.getKey()).append(":").append(entry.getValue()).append("\n");
+        for (int i = 0; i < headerCount; i++) {
+            sb.append(getHeaderName(i)).append(":").append(getHeaderValue(i)).append("\n");
         }
 
         sb.append("\n"); // Separate headers from body
-        if (body != null && !body.isEmpty()) {
-            sb.append(body);
+        if (hasBody()) {
+            sb.append(getBody());
         }
 
         return sb.toString();
-    }   
+    }
 
 }
@@ -4,24 +4,47 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
     private int connectionId; // The connection ID for the current client
     private Connections<T> connections; // The Connections object for communication
     private boolean shouldTerminate; // Flag to determine if the connection should be terminated
     private Map<String, Integer> subscriptions; // Map of topic -> subscription ID
+    private Map<Integer, String> subscriptionIds; // Map of subscription ID -> topic, to unsubscribe without a search
     private boolean isConnected; // Indicates if the client has successfully connected
-    private static final AtomicInteger messageCounter = new AtomicInteger(0);
+    private Map<String, Transaction<T>> transactions; // Transactions begun and not committed or aborted yet, by id
     private ConnectionHandler<T> handler;
+    private final long heartBeatSend; // Smallest interval (ms) at which the server can send heart-beats, 0 if it cannot
+    private final long heartBeatReceive; // Interval (ms) at which the server wants to receive heart-beats, 0 if it does not
+    public static final long DEFAULT_HEART_BEAT = 10000;
+    private static final long HEART_BEAT_GRACE = 2; // Missed client heart-beats tolerated before closing
+    private static final int MAX_TRANSACTION_FRAMES = 10000; // Frames one transaction may hold back
+    private static final int MAX_LOGIN_LENGTH = 256; // Well within what the credential store can keep
+    // SEND headers that are about the SEND itself, or that the server sets on the MESSAGE
+    private static final Set<String> RESERVED_SEND_HEADERS = new HashSet<>(Arrays.asList(
+            "destination", "receipt", "transaction", "content-length", "message-id", "subscription", "ack"));
 
     public StompMessagingProtocolImp() {
+        this(DEFAULT_HEART_BEAT, DEFAULT_HEART_BEAT);
+    }
+
+    public StompMessagingProtocolImp(long heartBeatSend, long heartBeatReceive) {
         this.shouldTerminate = false;
         this.subscriptions = new ConcurrentHashMap<>();
+        this.subscriptionIds = new ConcurrentHashMap<>();
+        this.transactions = new ConcurrentHashMap<>();
         this.isConnected = false;
+        this.heartBeatSend = heartBeatSend;
+        this.heartBeatReceive = heartBeatReceive;
     }
 
     @Override
@@ -31,10 +54,6 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
         this.handler = handler;
     }
 
-    private int generateMessageId() {
-        return messageCounter.incrementAndGet(); // Increment and return the new value
-    }
-
     @Override
     public void process(T message) {
         if (message instanceof StompFrame) {
@@ -54,6 +73,21 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
                 case "UNSUBSCRIBE":
                     handleUnsubscribe(frame);
                     break;
+                case "ACK":
+                    handleAck(frame, true);
+                    break;
+                case "NACK":
+                    handleAck(frame, false);
+                    break;
+                case "BEGIN":
+                    handleBegin(frame);
+                    break;
+                case "COMMIT":
+                    handleCommit(frame);
+                    break;
+                case "ABORT":
+                    handleAbort(frame);
+                    break;
                 case "DISCONNECT":
                     handleDisconnect(frame);
                     break;
@@ -70,10 +104,10 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
     }
 
     private void handleConnect(StompFrame frame) {
-        String acceptVersion = frame.getHeaders().get("accept-version");
-        String host = frame.getHeaders().get("host");
-        String username = frame.getHeaders().get("login");
-        String password = frame.getHeaders().get("passcode");
+        String acceptVersion = frame.getHeader("accept-version");
+        String host = frame.getHeader("host");
+        String username = frame.getHeader("login");
+        String password = frame.getHeader("passcode");
 
         if (isConnected) {
             handleError("Client is already connected",frame);
@@ -94,30 +128,100 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
             handleError("Missing 'login' or 'passcode'",frame);
             return;
         }
+        if (username.length() > MAX_LOGIN_LENGTH) {
+            handleError("Invalid 'login': longer than " + MAX_LOGIN_LENGTH + " characters",frame);
+            return;
+        }
 
-        if (connections.isUserRegistered(username)) {
-            if (!connections.isPasswordCorrect(username, password)) {
-                handleError("Wrong password",frame);
-                return;
-            }
-        } else {
-            connections.registerUser(username, password);
+        String heartBeat = frame.getHeader("heart-beat");
+        long[] clientHeartBeat = parseHeartBeat(heartBeat);
+        if (clientHeartBeat == null) {
+            handleError("Invalid 'heart-beat': must be two non negative integers",frame);
+            return;
+        }
+
+        if (!connections.admitLogin(username)) {
+            handleError("Too many logins, try again later",frame);
+            return;
+        }
+
+        boolean authenticated;
+        try {
+            authenticated = connections.authenticate(username, password);
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            handleError("Could not register the user, try again later",frame);
+            return;
+        }
+        if (!authenticated) {
+            handleError("Wrong password",frame);
+            return;
+        }
+
+        if (!connections.startSession(username, connectionId)) {
+            handleError("User already logged in",frame);
+            return;
         }
 
         isConnected = true;
         Map<String, String> headers = new HashMap<>();
         headers.put("version", acceptVersion);
+        if (heartBeat != null) {
+            headers.put("heart-beat", negotiateHeartBeat(clientHeartBeat[0], clientHeartBeat[1]));
+        }
         StompFrame connectedFrame = new StompFrame("CONNECTED", headers, "");
         connections.addClient(connectionId, handler);
         connections.send(connectionId, (T) connectedFrame);
     }
 
+    /**
+     * @return the client's "cx,cy" pair, {0, 0} if it sent none, or null if it is malformed
+     */
+    private long[] parseHeartBeat(String heartBeat) {
+        if (heartBeat == null) {
+            return new long[]{0, 0};
+        }
+        int comma = heartBeat.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        try {
+            long cx = Long.parseLong(heartBeat.substring(0, comma).trim());
+            long cy = Long.parseLong(heartBeat.substring(comma + 1).trim());
+            return cx < 0 || cy < 0 ? null : new long[]{cx, cy};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts heart-beating as STOMP 1.2 negotiates it: each direction is on only if both sides want it,
+     * at the larger of the two intervals.
+     *
+     * @return the value of the CONNECTED frame's heart-beat header
+     */
+    private String negotiateHeartBeat(long cx, long cy) {
+        long sendEvery = heartBeatSend > 0 && cy > 0 ? Math.max(heartBeatSend, cy) : 0;
+        long expectEvery = heartBeatReceive > 0 && cx > 0 ? Math.max(heartBeatReceive, cx) : 0;
+        if (sendEvery == 0 && expectEvery == 0) {
+            return heartBeatSend + "," + heartBeatReceive;
+        }
+        if (!handler.startHeartBeat(sendEvery, expectEvery * HEART_BEAT_GRACE)) {
+            return "0,0";
+        }
+        return heartBeatSend + "," + heartBeatReceive;
+    }
+
     private void handleSend(StompFrame frame) {
-        String destination = frame.getHeaders().get("destination");
+        String destination = frame.getHeader("destination");
         if (destination == null) {
             handleError("Missing destination",frame);
             return;
         }
+        if (SubscriptionTrie.isPattern(destination)) {
+            handleError("Cannot send to a wildcard destination: " + destination,frame);
+            return;
+        }
 
         String body = frame.getBody();
         if (body == null || body.isEmpty()) {
@@ -125,25 +229,135 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
             return;
         }
 
-        if (!subscriptions.containsKey(destination)) {
+        // Producers of a queue are not its consumers, subscribing would make them compete for the work
+        if (!subscriptions.containsKey(destination) && !WorkQueue.isQueue(destination)) {
             handleError("Client is not subscribed to destination: " + destination,frame);
             return;
         }
-        // To do: put the right subscriptionId to every messege we create!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        int messageId = generateMessageId();
+        if (!connections.admitPublish(connectionId, destination)) {
+            handleError("Publishing too fast on " + destination,frame);
+            return;
+        }
+        // The subscription header is filled in per subscriber when the frame is fanned out
+        long messageId = MessageIds.next();
         Map<String, String> messageHeaders = new HashMap<>();
+        // User defined headers go along with the message, selectors may filter on them
+        for (int i = 0; i < frame.getHeaderCount(); i++) {
+            if (!RESERVED_SEND_HEADERS.contains(frame.getHeaderName(i))) {
+                messageHeaders.putIfAbsent(frame.getHeaderName(i), frame.getHeaderValue(i));
+            }
+        }
         messageHeaders.put("destination", destination);
-        messageHeaders.put("subscription", subscriptions.get(destination).toString());
         messageHeaders.put("message-id", String.valueOf(messageId));
 
         StompFrame messageFrame = new StompFrame("MESSAGE", messageHeaders, body);
-        connections.send(destination, (T) messageFrame);
+        Transaction<T> transaction = transactionOf(frame);
+        if (transaction == null) {
+            if (frame.getHeader("transaction") == null) {
+                try {
+                    connections.send(destination, (T) messageFrame, connectionId);
+                } catch (IllegalStateException e) {
+                    handleError(e.getMessage(),frame);
+                }
+            }
+            return;
+        }
+        transaction.destinations.add(destination);
+        transaction.messages.add((T) messageFrame);
+    }
+
+    /**
+     * @return the transaction the frame is part of, null if it is not part of one
+     * or if it names a transaction that was not begun (the client then got an ERROR)
+     */
+    private Transaction<T> transactionOf(StompFrame frame) {
+        String id = frame.getHeader("transaction");
+        if (id == null) {
+            return null;
+        }
+        Transaction<T> transaction = transactions.get(id);
+        if (transaction == null) {
+            handleError("No transaction " + id + " was begun",frame);
+            return null;
+        }
+        if (transaction.size() >= MAX_TRANSACTION_FRAMES) {
+            handleError("Transaction " + id + " holds too many frames, at most " + MAX_TRANSACTION_FRAMES,frame);
+            return null;
+        }
+        return transaction;
+    }
+
+    private void handleBegin(StompFrame frame) {
+        String id = frame.getHeader("transaction");
+        if (id == null) {
+            handleError("Missing 'transaction'",frame);
+            return;
+        }
+        if (transactions.putIfAbsent(id, new Transaction<>()) != null) {
+            handleError("Transaction " + id + " was already begun",frame);
+            return;
+        }
+        sendReceipt(frame);
+    }
+
+    /**
+     * Publishes the transaction's messages as one batch, then applies its acknowledgements.
+     */
+    private void handleCommit(StompFrame frame) {
+        String id = frame.getHeader("transaction");
+        if (id == null) {
+            handleError("Missing 'transaction'",frame);
+            return;
+        }
+        Transaction<T> transaction = transactions.remove(id);
+        if (transaction == null) {
+            handleError("No transaction " + id + " was begun",frame);
+            return;
+        }
+        if (!transaction.messages.isEmpty()) {
+            try {
+                connections.sendBatch(transaction.destinations, transaction.messages, connectionId);
+            } catch (IllegalStateException e) {
+                handleError(e.getMessage(),frame); // The acks are not applied, they come back as redeliveries
+                return;
+            }
+        }
+        for (Runnable ack : transaction.acks) {
+            ack.run();
+        }
+        sendReceipt(frame);
+    }
+
+    private void handleAbort(StompFrame frame) {
+        String id = frame.getHeader("transaction");
+        if (id == null) {
+            handleError("Missing 'transaction'",frame);
+            return;
+        }
+        if (transactions.remove(id) == null) {
+            handleError("No transaction " + id + " was begun",frame);
+            return;
+        }
+        sendReceipt(frame);
+    }
+
+    /**
+     * What a transaction holds back until it is committed.
+     */
+    private static final class Transaction<T> {
+        private final List<String> destinations = new ArrayList<>();
+        private final List<T> messages = new ArrayList<>(); // MESSAGE frames, one per destination
+        private final List<Runnable> acks = new ArrayList<>(); // ACK and NACK frames, applied on commit
+
+        private int size() {
+            return messages.size() + acks.size();
+        }
     }
 
     private void handleSubscribe(StompFrame frame) {
         ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        String destination =  frame.getHeaders().get("destination");
-        String id = frame.getHeaders().get("id");
+        String destination =  frame.getHeader("destination");
+        String id = frame.getHeader("id");
 
         if (destination == null || id == null) {
             handleError("Missing 'destination' or 'id'",frame);
@@ -156,14 +370,100 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
             handleError("Invalid 'id': must be an integer",frame);
             return;
         }
+        String invalidPattern = SubscriptionTrie.validatePattern(destination);
+        if (invalidPattern != null) {
+            handleError("Invalid destination " + destination + ": " + invalidPattern,frame);
+            return;
+        }
+        if (WorkQueue.isQueue(destination) && SubscriptionTrie.isPattern(destination)) {
+            handleError("Cannot subscribe to a wildcard queue: " + destination,frame);
+            return;
+        }
         if (subscriptions.containsKey(destination)) {
             //handleError("Already subscribed to this channel");
             return;
         }
+        if (subscriptionIds.containsKey(subscriptionId)) {
+            handleError("Subscription id " + subscriptionId + " is already in use",frame);
+            return;
+        }
+        String replayOffset = frame.getHeader("replay-offset");
+        String replaySince = frame.getHeader("replay-since");
+        long replayFrom = -1;
+        if (replayOffset != null || replaySince != null) {
+            if (replayOffset != null && replaySince != null) {
+                handleError("Use either 'replay-offset' or 'replay-since', not both",frame);
+                return;
+            }
+            if (SubscriptionTrie.isPattern(destination)) {
+                handleError("Cannot replay a wildcard destination: " + destination,frame);
+                return;
+            }
+            try {
+                replayFrom = Long.parseLong(replayOffset != null ? replayOffset : replaySince);
+            } catch (NumberFormatException e) {
+                replayFrom = -1;
+            }
+            if (replayFrom < 0) {
+                handleError("Invalid '" + (replayOffset != null ? "replay-offset" : "replay-since") + "': must be a non negative integer",frame);
+                return;
+            }
+        }
+        String selector = frame.getHeader("selector");
+        if (selector != null) {
+            try {
+                if (!connections.setSelector(destination, connectionId, subscriptionId, selector)) {
+                    handleError("This server does not support selectors",frame);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                handleError("Invalid 'selector': " + e.getMessage(),frame);
+                return;
+            }
+        }
+        String ack = frame.getHeader("ack");
+        if (ack != null && !ack.equals("auto") && !ack.equals("client") && !ack.equals("client-individual")) {
+            handleError("Invalid 'ack': must be auto, client or client-individual",frame);
+            return;
+        }
+        int prefetch = 0;
+        String prefetchCount = frame.getHeader("prefetch-count");
+        if (prefetchCount != null) {
+            try {
+                prefetch = Integer.parseInt(prefetchCount);
+            } catch (NumberFormatException e) {
+                prefetch = 0;
+            }
+            if (prefetch <= 0) {
+                handleError("Invalid 'prefetch-count': must be a positive integer",frame);
+                return;
+            }
+        }
+        if (ack != null && !ack.equals("auto")
+                && !connections.requireAcks(destination, connectionId, subscriptionId, prefetch, ack.equals("client"))) {
+            handleError("This server does not support the '" + ack + "' ack mode",frame);
+            return;
+        }
         subscriptions.put(destination, subscriptionId);
-        connections.subscribe(destination, connectionId);
+        subscriptionIds.put(subscriptionId, destination);
+        if (replayFrom < 0) {
+            sendReceipt(frame); // The client gets the receipt first, then the retained messages, then the live ones
+            connections.subscribe(destination, connectionId, subscriptionId);
+            return;
+        }
+        if (!(replayOffset != null
+                ? connections.subscribeFromOffset(destination, connectionId, subscriptionId, replayFrom)
+                : connections.subscribeFromTime(destination, connectionId, subscriptionId, replayFrom))) {
+            subscriptions.remove(destination);
+            subscriptionIds.remove(subscriptionId);
+            handleError("Destination " + destination + " is not logged, it cannot be replayed",frame);
+            return;
+        }
+        sendReceipt(frame);
+    }
 
-        String receiptId = frame.getHeaders().get("receipt");
+    private void sendReceipt(StompFrame frame) {
+        String receiptId = frame.getHeader("receipt");
 
         if (receiptId == null) {
             return;
@@ -177,7 +477,7 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
     }
 
     private void handleUnsubscribe(StompFrame frame) {
-        String id = frame.getHeaders().get("id");
+        String id = frame.getHeader("id");
 
         if (id == null) {
             handleError("Missing 'id'",frame);
@@ -192,20 +492,14 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
             return;
         }
 
-        String destination = null;
-        for (String dest : subscriptions.keySet()) {
-            if (subscriptions.get(dest).equals(subscriptionId)) {
-                destination = dest;
-                break;
-            }
-        }
+        String destination = subscriptionIds.remove(subscriptionId);
         if (destination == null) {
             return;
         }
         subscriptions.remove(destination);
         connections.unsubscribe(destination, connectionId);
 
-        String receiptId = frame.getHeaders().get("receipt");
+        String receiptId = frame.getHeader("receipt");
 
         if (receiptId == null) {
             return;
@@ -220,8 +514,56 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
         
     }
 
+    /**
+     * @param positive ACK if true, NACK if false
+     */
+    private void handleAck(StompFrame frame, boolean positive) {
+        String id = frame.getHeader("id");
+
+        if (id == null) {
+            handleError("Missing 'id'",frame);
+            return;
+        }
+
+        // The ack header of the MESSAGE: "<subscription id>-<sequence>"
+        int dash = id.lastIndexOf('-');
+        int subscriptionId;
+        long sequence;
+        try {
+            subscriptionId = Integer.parseInt(id.substring(0, Math.max(dash, 0)));
+            sequence = Long.parseLong(id.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            handleError("Invalid 'id': " + id,frame);
+            return;
+        }
+        if (!subscriptionIds.containsKey(subscriptionId)) {
+            handleError("No subscription with id " + subscriptionId,frame);
+            return;
+        }
+        Transaction<T> transaction = transactionOf(frame);
+        if (transaction != null) {
+            // By commit time the subscription may be gone, which leaves nothing to acknowledge
+            transaction.acks.add(positive
+                    ? () -> connections.ack(connectionId, subscriptionId, sequence)
+                    : () -> connections.nack(connectionId, subscriptionId, sequence));
+            sendReceipt(frame);
+            return;
+        }
+        if (frame.getHeader("transaction") != null) {
+            return; // Not begun, the client got an ERROR
+        }
+        boolean acknowledging = positive
+                ? connections.ack(connectionId, subscriptionId, sequence)
+                : connections.nack(connectionId, subscriptionId, sequence);
+        if (!acknowledging) {
+            handleError("Subscription " + subscriptionId + " does not acknowledge its messages",frame);
+            return;
+        }
+        sendReceipt(frame);
+    }
+
     private void handleDisconnect(StompFrame frame) {
-        String receiptId = frame.getHeaders().get("receipt");
+        String receiptId = frame.getHeader("receipt");
 
         if (receiptId == null) {
             handleError("Missing 'receipt'",frame);
@@ -243,7 +585,7 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
         headers.put("message", errorMessage);
 
         // Add the "receipt-id" if available
-        String receiptId = frame.getHeaders().get("receipt");
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
             headers.put("receipt-id", receiptId);
         }
@@ -254,8 +596,12 @@ public class StompMessagingProtocolImp<T> implements StompMessagingProtocol<T> {
         // Create the ERROR frame
         StompFrame errorFrame = new StompFrame("ERROR", headers, body);
 
-        // Send the ERROR frame to the client
-        connections.send(connectionId, (T) errorFrame);
+        // Send the ERROR frame to the client, connections only know it once it is connected
+        if (isConnected) {
+            connections.send(connectionId, (T) errorFrame);
+        } else {
+            handler.sendAndClose((T) errorFrame); // Such as a refused login, which would otherwise hang
+        }
 
         shouldTerminate = true;
         connections.disconnect(connectionId);
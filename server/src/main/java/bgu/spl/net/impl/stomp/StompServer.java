@@ -1,35 +1,317 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.NonBlockingConnectionHandler;
+import bgu.spl.net.srv.RateLimiter;
+import bgu.spl.net.srv.Reactor;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.SlowConsumerPolicy;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class StompServer {
 
+    private static final String USAGE =
+            "Usage: java StompServer <port> <reactor|tpc|vtpc> [-loops <n>] [-balance <round-robin|least-loaded>]"
+            + " [-high-watermark <bytes>] [-low-watermark <bytes>]"
+            + " [-heart-beat <send ms>,<receive ms>]"
+            + " [-slow-consumer <drop-oldest|drop-newest|conflate|disconnect>] [-topic-policy <destination>=<policy>]..."
+            + " [-conflate <destination>=<key field>]..."
+            + " [-fan-out-threshold <subscribers>] [-prefetch <messages>] [-queue-balance <round-robin|least-backlogged>]"
+            + " [-log-dir <directory> -log-destination <destination>... [-log-segment-bytes <bytes>]"
+            + " [-log-retention-bytes <bytes>] [-log-retention-ms <ms>] [-log-fsync <none|interval|group>] [-log-fsync-ms <ms>]]"
+            + " [-retain <messages>] [-retain-topic <destination>=<messages>]... [-retain-max-bytes <bytes>]"
+            + " [-users-dir <directory> [-hash-iterations <n>]]"
+            + " [-login-rate <per second>[,<burst>]] [-publish-rate <per second>[,<burst>]]"
+            + " [-destination-rate <per second>[,<burst>]] [-rate-limit-action <reject|delay>]"
+            + " [-accept-rate <per second>[,<burst>]] [-max-pool-backlog <actors>]"
+            + " [-cluster-port <port> -cluster-node <number> -cluster-secret <secret> [-peer <host>:<port>]...]";
+
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java StompServer <port> <reactor|tpc>");
+            System.out.println(USAGE);
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // Optional flags, the loops, watermarks and admission control only apply to the reactor
+        int loops = 1;
+        Reactor.LoopBalancing balancing = Reactor.LoopBalancing.ROUND_ROBIN;
+        long highWatermark = NonBlockingConnectionHandler.DEFAULT_HIGH_WATERMARK;
+        long lowWatermark = NonBlockingConnectionHandler.DEFAULT_LOW_WATERMARK;
+        long heartBeatSend = StompMessagingProtocolImp.DEFAULT_HEART_BEAT;
+        long heartBeatReceive = StompMessagingProtocolImp.DEFAULT_HEART_BEAT;
+        String logDir = null;
+        List<String> loggedDestinations = new ArrayList<>();
+        int logSegmentBytes = MessageLog.DEFAULT_SEGMENT_BYTES;
+        long logRetentionBytes = 0;
+        long logRetentionMillis = 0;
+        MessageLog.FsyncPolicy logFsync = MessageLog.FsyncPolicy.INTERVAL;
+        long logFsyncMillis = MessageLog.DEFAULT_FSYNC_INTERVAL_MILLIS;
+        int retainDepth = 0;
+        Map<String, Integer> retainDepths = new HashMap<>();
+        long retainMaxBytes = RetainedMessages.DEFAULT_MAX_BYTES;
+        String usersDir = null;
+        int hashIterations = HashedCredentialStore.DEFAULT_ITERATIONS;
+        int maxPoolBacklog = 0;
+        int clusterPort = 0;
+        int clusterNode = -1;
+        String clusterSecret = null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        RateLimiter acceptLimiter = null;
         ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-loops") && i + 1 < args.length) {
+                loops = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-balance") && i + 1 < args.length) {
+                String value = args[++i];
+                if (value.equalsIgnoreCase("least-loaded")) {
+                    balancing = Reactor.LoopBalancing.LEAST_LOADED;
+                } else if (!value.equalsIgnoreCase("round-robin")) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (args[i].equals("-high-watermark") && i + 1 < args.length) {
+                highWatermark = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-low-watermark") && i + 1 < args.length) {
+                lowWatermark = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-heart-beat") && i + 1 < args.length) {
+                String[] intervals = args[++i].split(",");
+                if (intervals.length != 2) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                heartBeatSend = Long.parseLong(intervals[0]);
+                heartBeatReceive = Long.parseLong(intervals[1]);
+            } else if (args[i].equals("-slow-consumer") && i + 1 < args.length) {
+                SlowConsumerPolicy policy = parsePolicy(args[++i]);
+                if (policy == null) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                connections.setSlowConsumerPolicy(policy);
+            } else if (args[i].equals("-topic-policy") && i + 1 < args.length) {
+                String value = args[++i];
+                int eq = value.lastIndexOf('=');
+                SlowConsumerPolicy policy = eq < 0 ? null : parsePolicy(value.substring(eq + 1));
+                if (policy == null) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                connections.setSlowConsumerPolicy(value.substring(0, eq), policy);
+            } else if (args[i].equals("-conflate") && i + 1 < args.length) {
+                String value = args[++i];
+                int eq = value.lastIndexOf('=');
+                if (eq < 0 || eq == value.length() - 1) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                connections.setConflationKey(value.substring(0, eq), value.substring(eq + 1));
+            } else if (args[i].equals("-fan-out-threshold") && i + 1 < args.length) {
+                int threshold = Integer.parseInt(args[++i]);
+                if (threshold < 1) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                connections.setFanOutThreshold(threshold);
+            } else if (args[i].equals("-prefetch") && i + 1 < args.length) {
+                int prefetch = Integer.parseInt(args[++i]);
+                if (prefetch < 1) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                connections.setDefaultWindow(prefetch);
+            } else if (args[i].equals("-queue-balance") && i + 1 < args.length) {
+                String value = args[++i];
+                if (value.equalsIgnoreCase("least-backlogged")) {
+                    connections.setConsumerBalancing(ConnectionsImpl.ConsumerBalancing.LEAST_BACKLOGGED);
+                } else if (!value.equalsIgnoreCase("round-robin")) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (args[i].equals("-log-dir") && i + 1 < args.length) {
+                logDir = args[++i];
+            } else if (args[i].equals("-log-destination") && i + 1 < args.length) {
+                loggedDestinations.add(args[++i]);
+            } else if (args[i].equals("-log-segment-bytes") && i + 1 < args.length) {
+                logSegmentBytes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-log-retention-bytes") && i + 1 < args.length) {
+                logRetentionBytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-log-retention-ms") && i + 1 < args.length) {
+                logRetentionMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-log-fsync") && i + 1 < args.length) {
+                try {
+                    logFsync = MessageLog.FsyncPolicy.valueOf(args[++i].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (args[i].equals("-log-fsync-ms") && i + 1 < args.length) {
+                logFsyncMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-retain") && i + 1 < args.length) {
+                retainDepth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-retain-topic") && i + 1 < args.length) {
+                String value = args[++i];
+                int eq = value.lastIndexOf('=');
+                if (eq < 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                retainDepths.put(value.substring(0, eq), Integer.parseInt(value.substring(eq + 1)));
+            } else if (args[i].equals("-retain-max-bytes") && i + 1 < args.length) {
+                retainMaxBytes = Long.parseLong(args[++i]);
+            } else if ((args[i].equals("-login-rate") || args[i].equals("-publish-rate")
+                    || args[i].equals("-destination-rate") || args[i].equals("-accept-rate")) && i + 1 < args.length) {
+                String flag = args[i];
+                RateLimiter limiter = parseRate(args[++i]);
+                if (limiter == null) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                if (flag.equals("-login-rate")) {
+                    connections.setLoginLimit(limiter);
+                } else if (flag.equals("-publish-rate")) {
+                    connections.setPublishLimit(limiter);
+                } else if (flag.equals("-destination-rate")) {
+                    connections.setDestinationLimit(limiter);
+                } else {
+                    acceptLimiter = limiter;
+                }
+            } else if (args[i].equals("-rate-limit-action") && i + 1 < args.length) {
+                try {
+                    connections.setRateLimitAction(ConnectionsImpl.RateLimitAction.valueOf(args[++i].toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (args[i].equals("-max-pool-backlog") && i + 1 < args.length) {
+                maxPoolBacklog = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-cluster-port") && i + 1 < args.length) {
+                clusterPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-cluster-node") && i + 1 < args.length) {
+                clusterNode = Integer.parseInt(args[++i]);
+                if (clusterNode < 0 || clusterNode > MessageIds.MAX_NODE) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (args[i].equals("-cluster-secret") && i + 1 < args.length) {
+                clusterSecret = args[++i];
+            } else if (args[i].equals("-peer") && i + 1 < args.length) {
+                String value = args[++i];
+                int colon = value.lastIndexOf(':');
+                if (colon < 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                peers.add(new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+            } else if (args[i].equals("-users-dir") && i + 1 < args.length) {
+                usersDir = args[++i];
+            } else if (args[i].equals("-hash-iterations") && i + 1 < args.length) {
+                hashIterations = Integer.parseInt(args[++i]);
+                if (hashIterations < 1) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        if (logDir != null && loggedDestinations.isEmpty()) {
+            System.out.println(USAGE); // Logging every destination, queues and ad-hoc topics too, is never what is wanted
+            return;
+        }
+        if (logDir != null) {
+            MessageLog log = new MessageLog(Paths.get(logDir), logSegmentBytes, logRetentionBytes, logRetentionMillis,
+                    logFsync, logFsyncMillis);
+            for (String destination : loggedDestinations) {
+                log.logDestinations(destination);
+            }
+            connections.setMessageLog(log);
+        }
+
+        if (retainDepth > 0 || !retainDepths.isEmpty()) {
+            RetainedMessages retained = new RetainedMessages(retainDepth, retainMaxBytes);
+            for (Map.Entry<String, Integer> depth : retainDepths.entrySet()) {
+                retained.setDepth(depth.getKey(), depth.getValue());
+            }
+            connections.setRetainedMessages(retained);
+        }
+
+        if (usersDir != null) {
+            connections.setCredentialStore(new HashedCredentialStore(Paths.get(usersDir), hashIterations));
+        }
+
+        if (clusterPort > 0 && clusterNode >= 0 && clusterSecret != null && !clusterSecret.isEmpty()) {
+            connections.setCluster(new Cluster(clusterPort, clusterNode, peers, clusterSecret));
+        } else if (clusterPort > 0 || clusterNode >= 0 || clusterSecret != null || !peers.isEmpty()) {
+            // Peers dial back to our cluster port, no node links without the secret, and numbers keep message ids apart
+            System.out.println(USAGE);
+            return;
+        }
+
+        final long sx = heartBeatSend;
+        final long sy = heartBeatReceive;
         if (serverType.equalsIgnoreCase("tpc")) {
             Server.threadPerClient(
                     port,
-                    () -> new StompMessagingProtocolImp<>(),
-                    () -> new MessageEncoderDecoderImp() 
+                    () -> new StompMessagingProtocolImp<>(sx, sy),
+                    () -> new MessageEncoderDecoderImp(),
+                    connections
+            ).serve();
+        } else if (serverType.equalsIgnoreCase("vtpc")) {
+            Server.virtualThreadPerClient(
+                    port,
+                    () -> new StompMessagingProtocolImp<>(sx, sy),
+                    () -> new MessageEncoderDecoderImp(),
+                    connections
             ).serve();
         } else if (serverType.equalsIgnoreCase("reactor")) {
             Server.reactor(
                     Runtime.getRuntime().availableProcessors(),
+                    loops,
+                    balancing,
+                    highWatermark,
+                    lowWatermark,
+                    maxPoolBacklog,
+                    acceptLimiter,
                     port,
-                    () -> new StompMessagingProtocolImp<>(),
+                    () -> new StompMessagingProtocolImp<>(sx, sy),
                     () -> new MessageEncoderDecoderImp(),
                     connections
             ).serve();
         } else {
-            System.out.println("Invalid server type. Use 'tpc' for Thread-Per-Client or 'reactor' for Reactor.");
+            System.out.println("Invalid server type. Use 'tpc' for Thread-Per-Client, 'vtpc' for Virtual-Thread-Per-Client or 'reactor' for Reactor.");
+        }
+    }
+
+    /**
+     * @param value "rate" or "rate,burst", the burst defaults to one second's worth of the rate
+     * @return null if it is malformed
+     */
+    private static RateLimiter parseRate(String value) {
+        String[] parts = value.split(",");
+        try {
+            double perSecond = Double.parseDouble(parts[0]);
+            int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.max(1, Math.ceil(perSecond));
+            return parts.length > 2 ? null : new RateLimiter(perSecond, burst);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static SlowConsumerPolicy parsePolicy(String name) {
+        try {
+            return SlowConsumerPolicy.valueOf(name.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException ex) {
+            return null;
         }
     }
 }
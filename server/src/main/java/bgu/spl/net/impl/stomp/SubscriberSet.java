@@ -0,0 +1,260 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+import java.util.Arrays;
+
+/**
+ * The subscribers of one topic, kept as a copy-on-write snapshot of parallel arrays so that fan-out
+ * is a plain walk over handler references, with no boxing and no lookups.
+ * Membership is found in O(1) through an open-addressing index from connection id to array position.
+ * Writers must be serialized by the caller (ConnectionsImpl only mutates a set inside
+ * ConcurrentHashMap.compute on its topic), readers never lock.
+ */
+class SubscriberSet<T> {
+
+    private static final int FREE = -1;
+    private static final int NO_SELECTOR = -1;
+
+    /**
+     * An immutable view of the subscribers, safe to iterate while the set changes.
+     * Subscribers with the same selector share one entry of the selectors, so it runs once per message.
+     */
+    static final class Snapshot<T> {
+        final ConnectionHandler<T>[] handlers;
+        final int[] connectionIds;
+        final int[] subscriptionIds;
+        final AckWindow<T>[] windows; // Null for subscriptions that do not acknowledge
+        final int[] selectorIds; // Position of the subscriber's selector in selectors, NO_SELECTOR if it takes every message
+        final MessageSelector[] selectors; // Null once no subscriber uses it anymore
+        final int[] selectorUsers;
+
+        private Snapshot(ConnectionHandler<T>[] handlers, int[] connectionIds, int[] subscriptionIds, AckWindow<T>[] windows,
+                         int[] selectorIds, MessageSelector[] selectors, int[] selectorUsers) {
+            this.handlers = handlers;
+            this.connectionIds = connectionIds;
+            this.subscriptionIds = subscriptionIds;
+            this.windows = windows;
+            this.selectorIds = selectorIds;
+            this.selectors = selectors;
+            this.selectorUsers = selectorUsers;
+        }
+
+        int size() {
+            return handlers.length;
+        }
+
+        /**
+         * @return what each selector says about the message, null if no subscriber has a selector
+         */
+        boolean[] evaluate(SharedMessageFrame frame) {
+            if (selectors.length == 0) {
+                return null;
+            }
+            boolean[] verdicts = new boolean[selectors.length];
+            for (int s = 0; s < selectors.length; s++) {
+                verdicts[s] = selectors[s] != null && selectors[s].matches(frame.fields());
+            }
+            return verdicts;
+        }
+
+        /**
+         * @param verdicts what {@link #evaluate} returned for the message
+         */
+        boolean selects(boolean[] verdicts, int i) {
+            return selectorIds[i] == NO_SELECTOR || verdicts[selectorIds[i]];
+        }
+    }
+
+    private volatile Snapshot<T> snapshot;
+    private int[] indexKeys; // Connection ids, FREE for an empty slot
+    private int[] indexValues; // Position of that connection in the snapshot arrays
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SubscriberSet() {
+        snapshot = new Snapshot<>(new ConnectionHandler[0], new int[0], new int[0], new AckWindow[0],
+                new int[0], new MessageSelector[0], new int[0]);
+        indexKeys = new int[8];
+        indexValues = new int[8];
+        Arrays.fill(indexKeys, FREE);
+    }
+
+    Snapshot<T> snapshot() {
+        return snapshot;
+    }
+
+    boolean isEmpty() {
+        return snapshot.handlers.length == 0;
+    }
+
+    /**
+     * Adds the connection, or updates its handler and subscription if it is already in the set.
+     *
+     * @param window null if the subscription does not acknowledge
+     * @param selector null if the subscription takes every message
+     */
+    void add(int connectionId, ConnectionHandler<T> handler, int subscriptionId, AckWindow<T> window,
+             MessageSelector selector) {
+        Snapshot<T> current = snapshot;
+        int position = find(connectionId);
+        int size = current.size();
+        ConnectionHandler<T>[] handlers = Arrays.copyOf(current.handlers, position < 0 ? size + 1 : size);
+        int[] connectionIds = Arrays.copyOf(current.connectionIds, handlers.length);
+        int[] subscriptionIds = Arrays.copyOf(current.subscriptionIds, handlers.length);
+        AckWindow<T>[] windows = Arrays.copyOf(current.windows, handlers.length);
+        int[] selectorIds = Arrays.copyOf(current.selectorIds, handlers.length);
+        MessageSelector[] selectors = current.selectors.clone();
+        int[] selectorUsers = current.selectorUsers.clone();
+        if (position < 0) {
+            position = size;
+            insert(connectionId, position);
+        } else {
+            release(selectors, selectorUsers, selectorIds[position]);
+        }
+        int selectorId = NO_SELECTOR;
+        if (selector != null) {
+            // Grouped by text, one compiled again after leaving the cache still shares the entry, else a free one
+            for (int s = 0; s < selectors.length && selectorId == NO_SELECTOR; s++) {
+                if (selectors[s] == selector || selectors[s] != null && selectors[s].toString().equals(selector.toString())) {
+                    selectorId = s;
+                }
+            }
+            for (int s = 0; s < selectors.length && selectorId == NO_SELECTOR; s++) {
+                if (selectors[s] == null) {
+                    selectorId = s;
+                }
+            }
+            if (selectorId == NO_SELECTOR) {
+                selectorId = selectors.length;
+                selectors = Arrays.copyOf(selectors, selectors.length + 1);
+                selectorUsers = Arrays.copyOf(selectorUsers, selectors.length);
+            }
+            selectors[selectorId] = selector;
+            selectorUsers[selectorId]++;
+        }
+        handlers[position] = handler;
+        connectionIds[position] = connectionId;
+        subscriptionIds[position] = subscriptionId;
+        windows[position] = window;
+        selectorIds[position] = selectorId;
+        snapshot = newSnapshot(handlers, connectionIds, subscriptionIds, windows, selectorIds, selectors, selectorUsers);
+    }
+
+    /**
+     * @return true if the connection was in the set
+     */
+    boolean remove(int connectionId) {
+        int position = find(connectionId);
+        if (position < 0) {
+            return false;
+        }
+        Snapshot<T> current = snapshot;
+        int last = current.size() - 1;
+        // Move the last subscriber into the freed position so the arrays stay dense
+        ConnectionHandler<T>[] handlers = Arrays.copyOf(current.handlers, last);
+        int[] connectionIds = Arrays.copyOf(current.connectionIds, last);
+        int[] subscriptionIds = Arrays.copyOf(current.subscriptionIds, last);
+        AckWindow<T>[] windows = Arrays.copyOf(current.windows, last);
+        int[] selectorIds = Arrays.copyOf(current.selectorIds, last);
+        int[] selectorUsers = current.selectorUsers.clone();
+        MessageSelector[] selectors = current.selectors.clone();
+        release(selectors, selectorUsers, current.selectorIds[position]);
+        delete(connectionId);
+        if (position != last) {
+            handlers[position] = current.handlers[last];
+            connectionIds[position] = current.connectionIds[last];
+            subscriptionIds[position] = current.subscriptionIds[last];
+            windows[position] = current.windows[last];
+            selectorIds[position] = current.selectorIds[last];
+            indexValues[slotOf(current.connectionIds[last])] = position;
+        }
+        snapshot = newSnapshot(handlers, connectionIds, subscriptionIds, windows, selectorIds, selectors, selectorUsers);
+        return true;
+    }
+
+    // Frees the selector's entry once its last subscriber is gone, so it stops being evaluated
+    private static void release(MessageSelector[] selectors, int[] selectorUsers, int selectorId) {
+        if (selectorId != NO_SELECTOR && --selectorUsers[selectorId] == 0) {
+            selectors[selectorId] = null;
+        }
+    }
+
+    private Snapshot<T> newSnapshot(ConnectionHandler<T>[] handlers, int[] connectionIds, int[] subscriptionIds,
+                                    AckWindow<T>[] windows, int[] selectorIds, MessageSelector[] selectors, int[] selectorUsers) {
+        boolean anySelector = false;
+        for (MessageSelector selector : selectors) {
+            anySelector |= selector != null;
+        }
+        if (!anySelector) { // Back to the fast path: nothing to evaluate per message
+            selectors = new MessageSelector[0];
+            selectorUsers = new int[0];
+        }
+        return new Snapshot<>(handlers, connectionIds, subscriptionIds, windows, selectorIds, selectors, selectorUsers);
+    }
+
+    private int find(int connectionId) {
+        int slot = slotOf(connectionId);
+        return indexKeys[slot] == FREE ? -1 : indexValues[slot];
+    }
+
+    // The slot holding the key, or the free slot where it would go
+    private int slotOf(int connectionId) {
+        int mask = indexKeys.length - 1;
+        int slot = mix(connectionId) & mask;
+        while (indexKeys[slot] != FREE && indexKeys[slot] != connectionId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int connectionId, int position) {
+        if ((snapshot.size() + 1) * 2 > indexKeys.length) {
+            rehash(indexKeys.length * 2);
+        }
+        int slot = slotOf(connectionId);
+        indexKeys[slot] = connectionId;
+        indexValues[slot] = position;
+    }
+
+    // Linear probing deletion without tombstones: shift later keys of the same run back
+    private void delete(int connectionId) {
+        int mask = indexKeys.length - 1;
+        int hole = slotOf(connectionId);
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int key = indexKeys[slot];
+            if (key == FREE) {
+                break;
+            }
+            int home = mix(key) & mask;
+            boolean movable = hole <= slot ? home <= hole || home > slot : home <= hole && home > slot;
+            if (movable) {
+                indexKeys[hole] = key;
+                indexValues[hole] = indexValues[slot];
+                hole = slot;
+            }
+        }
+        indexKeys[hole] = FREE;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = indexKeys;
+        int[] oldValues = indexValues;
+        indexKeys = new int[capacity];
+        indexValues = new int[capacity];
+        Arrays.fill(indexKeys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slotOf(oldKeys[i]);
+                indexKeys[slot] = oldKeys[i];
+                indexValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,184 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The wildcard subscriptions, stored by destination segment ('/' separated).
+ * A "*" segment matches exactly one segment, a final "#" matches any number of segments, none included,
+ * so "/events/germany/*" follows every game in Germany and "/events/#" every event.
+ * Lookups walk the trie without locking; subscribing and unsubscribing are rare next to publishing
+ * and are serialized by the trie's lock, which also keeps a pattern from losing its set to a concurrent removal.
+ */
+class SubscriptionTrie<T> {
+
+    static final String ONE_SEGMENT = "*";
+    static final String ANY_SEGMENTS = "#";
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * @return true if the destination contains wildcard segments
+     */
+    static boolean isPattern(String destination) {
+        for (String segment : segments(destination)) {
+            if (ONE_SEGMENT.equals(segment) || ANY_SEGMENTS.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return null if the pattern is valid, else why it is not
+     */
+    static String validatePattern(String pattern) {
+        String[] segments = segments(pattern);
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (ANY_SEGMENTS.equals(segments[i])) {
+                return "'" + ANY_SEGMENTS + "' may only be the last segment of a destination";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the concrete destination matches the pattern, which may also be a plain destination
+     */
+    static boolean matches(String pattern, String destination) {
+        return matches(segments(pattern), 0, segments(destination), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] destination, int d) {
+        if (p == pattern.length) {
+            return d == destination.length;
+        }
+        if (ANY_SEGMENTS.equals(pattern[p])) {
+            return true;
+        }
+        if (d == destination.length) {
+            return false;
+        }
+        return (ONE_SEGMENT.equals(pattern[p]) || pattern[p].equals(destination[d]))
+                && matches(pattern, p + 1, destination, d + 1);
+    }
+
+    static String[] segments(String destination) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < destination.length(); i++) {
+            if (destination.charAt(i) == '/') {
+                segments.add(destination.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(destination.substring(start));
+        return segments.toArray(new String[0]);
+    }
+
+    /**
+     * Adds a subscriber to the pattern's set, creating it if needed.
+     *
+     * @return true if the set was created
+     */
+    synchronized boolean add(String pattern, int connectionId, ConnectionHandler<T> handler, int subscriptionId,
+                             AckWindow<T> window, MessageSelector selector) {
+        Node<T> node = root;
+        for (String segment : segments(pattern)) {
+            node = node.children.computeIfAbsent(segment, k -> new Node<>());
+        }
+        boolean created = node.subscribers == null;
+        if (created) {
+            node.subscribers = new SubscriberSet<>();
+        }
+        node.subscribers.add(connectionId, handler, subscriptionId, window, selector);
+        return created;
+    }
+
+    /**
+     * @return true if the pattern has subscribers
+     */
+    synchronized boolean contains(String pattern) {
+        Node<T> node = root;
+        for (String segment : segments(pattern)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.subscribers != null;
+    }
+
+    /**
+     * @return true if the pattern's set became empty and was removed
+     */
+    synchronized boolean remove(String pattern, int connectionId) {
+        String[] segments = segments(pattern);
+        Node<T>[] path = newPath(segments.length + 1);
+        path[0] = root;
+        for (int i = 0; i < segments.length; i++) {
+            path[i + 1] = path[i].children.get(segments[i]);
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+        Node<T> node = path[segments.length];
+        if (node.subscribers == null || !node.subscribers.remove(connectionId) || !node.subscribers.isEmpty()) {
+            return false;
+        }
+        node.subscribers = null;
+        // Prune the branch up to the first node still in use
+        for (int i = segments.length; i > 0 && path[i].isUnused(); i--) {
+            path[i - 1].children.remove(segments[i - 1]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the sets of every pattern matching the concrete destination
+     */
+    List<SubscriberSet<T>> match(String destination) {
+        List<SubscriberSet<T>> matches = new ArrayList<>();
+        match(root, segments(destination), 0, matches);
+        return matches;
+    }
+
+    private void match(Node<T> node, String[] segments, int index, List<SubscriberSet<T>> matches) {
+        Node<T> any = node.children.get(ANY_SEGMENTS);
+        if (any != null && any.subscribers != null) {
+            matches.add(any.subscribers);
+        }
+        if (index == segments.length) {
+            if (node.subscribers != null) {
+                matches.add(node.subscribers);
+            }
+            return;
+        }
+        Node<T> exact = node.children.get(segments[index]);
+        if (exact != null) {
+            match(exact, segments, index + 1, matches);
+        }
+        Node<T> one = node.children.get(ONE_SEGMENT);
+        if (one != null) {
+            match(one, segments, index + 1, matches);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Node<T>[] newPath(int length) {
+        return (Node<T>[]) new Node[length];
+    }
+
+    private static final class Node<T> {
+        private final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+        private volatile SubscriberSet<T> subscribers; // Subscribers of the pattern ending here
+
+        private boolean isUnused() {
+            return subscribers == null && children.isEmpty();
+        }
+    }
+}
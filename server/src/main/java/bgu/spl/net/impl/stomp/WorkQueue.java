@@ -0,0 +1,126 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A point-to-point destination ("/queue/..."): each message goes to exactly one of its subscribers.
+ * Messages no subscriber can take right now (there is none, or every acknowledging one is at its window)
+ * wait here in order; those a subscriber left unacknowledged come back in front of them.
+ * Not thread safe: ConnectionsImpl holds the queue's lock around a whole dispatch.
+ */
+class WorkQueue<T> {
+
+    static final String PREFIX = "/queue/";
+    static final int MAX_WAITING = 100000; // Past it new messages are refused until consumers catch up
+
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<>();
+    private int next = 0; // Where the round-robin search starts
+
+    static boolean isQueue(String destination) {
+        return destination.startsWith(PREFIX);
+    }
+
+    boolean hasRoom() {
+        return waiting.size() < MAX_WAITING;
+    }
+
+    /**
+     * @param evenIfFull add it past the limit, the caller made sure there was room before committing to it
+     * @return false if the queue is full, the message was not added
+     */
+    boolean add(SharedMessageFrame frame, boolean evenIfFull) {
+        if (!evenIfFull && !hasRoom()) {
+            return false;
+        }
+        waiting.add(new Entry(frame, false));
+        return true;
+    }
+
+    /**
+     * Puts back messages a subscriber did not acknowledge, first in line and in their order.
+     */
+    void requeue(List<SharedMessageFrame> frames) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            waiting.addFirst(new Entry(frames.get(i), true));
+        }
+    }
+
+    /**
+     * Puts back a message taken for a subscriber that could not take it after all, first in line.
+     */
+    void putBack(Entry entry) {
+        waiting.addFirst(entry);
+    }
+
+    boolean isEmpty() {
+        return waiting.isEmpty();
+    }
+
+    Entry peek() {
+        return waiting.peek();
+    }
+
+    Entry poll() {
+        return waiting.poll();
+    }
+
+    /**
+     * Picks the subscriber of the snapshot the next message goes to: the next one in turn, or the one with the fewest
+     * unacknowledged messages and then the shortest write queue. Subscribers whose selector rejects the message or
+     * whose window is full are skipped, connections behind on their writes are only picked when nobody else can take it.
+     *
+     * @param verdicts what the snapshot's selectors say about the message, null if it has none
+     * @return its position in the snapshot, -1 if no subscriber can take a message now
+     */
+    int choose(SubscriberSet.Snapshot<T> consumers, boolean[] verdicts, ConnectionsImpl.ConsumerBalancing balancing) {
+        int size = consumers.size();
+        int chosen = -1;
+        int chosenUnacknowledged = Integer.MAX_VALUE;
+        long chosenQueued = Long.MAX_VALUE;
+        boolean chosenSaturated = true;
+        for (int k = 0; k < size; k++) {
+            int i = (next + k) % size;
+            AckWindow<T> window = consumers.windows[i];
+            if (verdicts != null && !consumers.selects(verdicts, i) || window != null && !window.hasRoomNow()) {
+                continue;
+            }
+            boolean saturated = consumers.handlers[i].isSaturated();
+            if (balancing == ConnectionsImpl.ConsumerBalancing.ROUND_ROBIN) {
+                if (!saturated) {
+                    chosen = i;
+                    break;
+                }
+                if (chosen < 0) {
+                    chosen = i;
+                }
+                continue;
+            }
+            // Messages still being worked on first, they are usually written already, then bytes not written yet
+            int unacknowledged = window == null ? 0 : window.backlog();
+            long queued = consumers.handlers[i].queuedBytes();
+            if (chosen < 0 || (chosenSaturated && !saturated) || (chosenSaturated == saturated
+                    && (unacknowledged < chosenUnacknowledged
+                    || unacknowledged == chosenUnacknowledged && queued < chosenQueued))) {
+                chosen = i;
+                chosenUnacknowledged = unacknowledged;
+                chosenQueued = queued;
+                chosenSaturated = saturated;
+            }
+        }
+        if (chosen >= 0) {
+            next = (chosen + 1) % size;
+        }
+        return chosen;
+    }
+
+    static final class Entry {
+        final SharedMessageFrame frame;
+        final boolean redelivered;
+
+        private Entry(SharedMessageFrame frame, boolean redelivered) {
+            this.frame = frame;
+            this.redelivered = redelivered;
+        }
+    }
+}
@@ -1,77 +1,120 @@
 package bgu.spl.net.srv;
 //
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
-    private final ExecutorService threads;
+    private static final int DEFAULT_TASKS_PER_TURN = 32;
+
+    private final ThreadPoolExecutor threads;
+    private final int maxTasksPerTurn;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads, DEFAULT_TASKS_PER_TURN);
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    /**
+     * @param threads number of threads running actors
+     * @param maxTasksPerTurn how many tasks an actor may run before it goes back to the end of the pool's queue,
+     *                        so one busy actor cannot hold a thread while others wait
+     */
+    public ActorThreadPool(int threads, int maxTasksPerTurn) {
+        if (maxTasksPerTurn < 1) {
+            throw new IllegalArgumentException("an actor must be allowed at least one task per turn");
+        }
+        this.threads = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.maxTasksPerTurn = maxTasksPerTurn;
+    }
+
+    /**
+     * Adds the task to the actor's mailbox. Tasks of the same actor run one at a time, in submission order.
+     */
+    public void submit(Mailbox act, Runnable r) {
+        act.push(r);
+        if (act.scheduled.compareAndSet(false, true)) {
+            execute(act);
         }
     }
 
+    /**
+     * @return the actors waiting for a thread, a measure of how far behind the pool is
+     */
+    public int backlog() {
+        return threads.getQueue().size();
+    }
+
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
+    private void execute(Mailbox act) {
+        threads.execute(() -> runTurn(act));
+    }
 
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
+    private void runTurn(Mailbox act) {
+        try {
+            Runnable r;
+            for (int ran = 0; ran < maxTasksPerTurn && (r = act.poll()) != null; ran++) {
+                r.run();
+            }
+        } finally {
+            complete(act);
+        }
+    }
 
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    private void complete(Mailbox act) {
+        act.scheduled.set(false);
+        // A producer that pushed while we were running saw scheduled == true and left the work to us
+        if (!act.isEmpty() && act.scheduled.compareAndSet(false, true)) {
+            execute(act);
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
-                r.run();
-            } finally {
-                complete(act);
+    /**
+     * The mailbox of one actor: a multi-producer single-consumer linked queue (any thread may submit,
+     * only the thread currently running the actor polls) and the flag telling if the actor is scheduled.
+     */
+    public static final class Mailbox {
+        private final AtomicReference<Node> head; // Producers append here
+        private Node tail; // Consumer side, its next node is the oldest task
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        public Mailbox() {
+            tail = new Node(null);
+            head = new AtomicReference<>(tail);
+        }
+
+        private void push(Runnable r) {
+            Node node = new Node(r);
+            head.getAndSet(node).next = node;
+        }
+
+        private Runnable poll() {
+            Node next = tail.next;
+            if (next == null) {
+                return null;
             }
-        });
+            Runnable r = next.task;
+            next.task = null;
+            tail = next;
+            return r;
+        }
+
+        private boolean isEmpty() {
+            return tail.next == null;
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private static final class Node {
+        private Runnable task;
+        private volatile Node next;
+
+        private Node(Runnable task) {
+            this.task = task;
         }
     }
 
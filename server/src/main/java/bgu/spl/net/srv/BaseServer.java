@@ -14,17 +14,26 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
-    private final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+    private final Connections<T> connections;
     private final AtomicInteger connectionId = new AtomicInteger(0);
 
     public BaseServer(
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, new ConnectionsImpl<>());
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            Connections<T> connections) {
 
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
+        this.connections = connections;
 		this.sock = null;
     }
 
@@ -4,18 +4,25 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.impl.stomp.StompFrame;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
+    private InputStream in;
     private BufferedOutputStream out;
+    private final byte[] scratch = new byte[BUFFER_ALLOCATION_SIZE]; // Guarded by writeLock, copies buffers without an array
+    private final Lock writeLock = new ReentrantLock(); // Keeps frames sent from different threads whole
     private volatile boolean connected = true;
     private final Connections<T> connections;
     private final int connectionId;
@@ -34,20 +41,26 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_ALLOCATION_SIZE);
 
-            in = new BufferedInputStream(sock.getInputStream());
+            in = sock.getInputStream(); // Reads are already done in large chunks, no need for another buffer
             out = new BufferedOutputStream(sock.getOutputStream());
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            while (!protocol.shouldTerminate() && connected && (read = in.read(buf.array())) >= 0) {
+                buf.clear().limit(read);
+                for (T nextMessage : encdec.decode(buf)) {
                     System.out.println(nextMessage.toString());
                     protocol.process(nextMessage);
+                    if (protocol.shouldTerminate()) {
+                        break;
+                    }
                 }
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            connections.disconnect(connectionId); // Do not leave a dead client in the clients and topics
         }
 
     }
@@ -65,6 +78,7 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void send(T msg) {
+        writeLock.lock();
         try {
             System.out.println(msg.toString());
             out.write(encdec.encode(msg));
@@ -73,6 +87,45 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
         catch (IOException ex) {
             ex.printStackTrace();
             // maybe neede close()
-        } 
+        } finally {
+            writeLock.unlock();
+        }
     } 
+
+    @Override
+    public boolean sendEncoded(OutboundFrame frame, SlowConsumerPolicy policy) {
+        // Writes block until the client reads, so this connection never queues anything up
+        writeLock.lock();
+        try {
+            // Straight to the stream, a channel over it would take a monitor that pins a virtual thread
+            for (ByteBuffer part : frame.getParts()) {
+                if (part.hasArray()) {
+                    out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                    part.position(part.limit());
+                    continue;
+                }
+                while (part.hasRemaining()) {
+                    int length = Math.min(part.remaining(), scratch.length);
+                    part.get(scratch, 0, length);
+                    out.write(scratch, 0, length);
+                }
+            }
+            out.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void sendAndClose(T msg) {
+        send(msg);
+        try {
+            close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
 }
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,80 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a message that was already encoded, its buffers may be shared with other handlers,
+     * so only their remaining bytes are read and their content is never modified.
+     * When this connection is saturated the policy decides what happens to the message.
+     *
+     * @return true if the message was queued, false if it was dropped
+     * (with {@link SlowConsumerPolicy#DISCONNECT} the caller is expected to close the connection)
+     */
+    boolean sendEncoded(OutboundFrame frame, SlowConsumerPolicy policy);
+
+    /**
+     * Drops every message still waiting to be written, sends this last one and closes the connection.
+     */
+    void sendAndClose(T msg);
+
+    /**
+     * @return true while this connection is behind on its writes, between passing its high watermark
+     * and draining back under its low watermark
+     */
+    default boolean isSaturated() {
+        return false;
+    }
+
+    /**
+     * @return the bytes waiting to be written to this connection
+     */
+    default long queuedBytes() {
+        return 0;
+    }
+
+    /**
+     * Stops reading from the publisher until this (saturated) connection drains under its low watermark.
+     */
+    default void holdUntilDrained(ConnectionHandler<?> publisher) {
+    }
+
+    /**
+     * Stops reading from this connection until a matching {@link #resumeReads()}, holds may be nested.
+     */
+    default void suspendReads() {
+    }
+
+    default void resumeReads() {
+    }
+
+    /**
+     * Stops reading from this connection for a while, pushing back on a client that goes too fast.
+     * By default the calling thread sleeps, which is right when it is the connection's own reading thread.
+     */
+    default void pauseReads(long delay, TimeUnit unit) {
+        try {
+            unit.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the task once this connection is no longer saturated, right away if it is not.
+     * Tasks still waiting when the connection closes are dropped.
+     */
+    default void whenDrained(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Starts STOMP heart-beating on this connection: an EOL is sent whenever nothing else was written
+     * for sendEvery milliseconds, and the connection is closed when nothing was read for expectWithin
+     * milliseconds. Zero turns that direction off.
+     *
+     * @return false if this handler cannot heart-beat, the client must then be told 0,0
+     */
+    default boolean startHeartBeat(long sendEvery, long expectWithin) {
+        return false;
+    }
+
 }
@@ -1,6 +1,7 @@
 package bgu.spl.net.srv;
 
 import java.io.IOException;
+import java.util.List;
 //
 public interface Connections<T> {
 
@@ -8,9 +9,89 @@ public interface Connections<T> {
 
     void send(String channel, T msg);
 
+    /**
+     * Sends to every subscriber of the channel like {@link #send(String, Object)}, and holds back
+     * the publisher while some of those subscribers are saturated.
+     *
+     * @throws IllegalStateException if the message was not accepted as asked, such as when it could not be logged,
+     * the message says why
+     */
+    default void send(String channel, T msg, int publisherId) {
+        send(channel, msg);
+    }
+
+    /**
+     * Sends the messages in order, like {@link #send(String, Object, int)} each, but every subscriber gets
+     * its share of them as one batch where it can.
+     *
+     * @param channels the channel of each message
+     * @throws IllegalStateException if some message was not accepted, for the first of them, the others were sent
+     */
+    default void sendBatch(List<String> channels, List<T> msgs, int publisherId) {
+        for (int i = 0; i < msgs.size(); i++) {
+            send(channels.get(i), msgs.get(i), publisherId);
+        }
+    }
+
     void disconnect(int connectionId);
 
-    void subscribe(String channel, int connectionId);
+    void subscribe(String channel, int connectionId, int subscriptionId);
+
+    /**
+     * Subscribes after replaying the channel's logged messages from the offset on, then delivers
+     * the live ones without a gap or a duplicate in between.
+     *
+     * @return false if the channel is not logged, nothing was subscribed then
+     */
+    default boolean subscribeFromOffset(String channel, int connectionId, int subscriptionId, long offset) {
+        return false;
+    }
+
+    /**
+     * Like {@link #subscribeFromOffset}, from the first message logged at or after the time (epoch milliseconds).
+     */
+    default boolean subscribeFromTime(String channel, int connectionId, int subscriptionId, long timestampMillis) {
+        return false;
+    }
+
+    /**
+     * Makes the next subscription with this id only receive the messages the selector accepts.
+     * Must be called before subscribing.
+     *
+     * @return false if selectors are not supported
+     * @throws IllegalArgumentException if the selector is malformed
+     */
+    default boolean setSelector(String channel, int connectionId, int subscriptionId, String selector) {
+        return false;
+    }
+
+    /**
+     * Makes the next subscription with this id acknowledge its messages: at most window of them are unacknowledged
+     * at a time, the others wait on the server. Must be called before subscribing.
+     *
+     * @param window 0 for the server's default
+     * @param cumulative acknowledging a message also acknowledges every earlier one (the "client" ack mode)
+     * @return false if acknowledgements are not supported
+     */
+    default boolean requireAcks(String channel, int connectionId, int subscriptionId, int window, boolean cumulative) {
+        return false;
+    }
+
+    /**
+     * @return false if the subscription does not acknowledge its messages
+     */
+    default boolean ack(int connectionId, int subscriptionId, long sequence) {
+        return false;
+    }
+
+    /**
+     * Gives back an unacknowledged message (every earlier one too in the "client" ack mode) to be delivered again.
+     *
+     * @return false if the subscription does not acknowledge its messages
+     */
+    default boolean nack(int connectionId, int subscriptionId, long sequence) {
+        return false;
+    }
 
     void unsubscribe(String channel, int connectionId);
 
@@ -20,6 +101,42 @@ public interface Connections<T> {
 
     boolean isPasswordCorrect(String username, String password);
 
+    /**
+     * Registers the user on their first login, else checks their password, as one step.
+     */
+    default boolean authenticate(String username, String password) {
+        return registerUser(username, password) || isPasswordCorrect(username, password);
+    }
+
+    /**
+     * Makes the connection the user's session until it disconnects.
+     *
+     * @return false if the user has a session on another connection already
+     */
+    default boolean startSession(String username, int connectionId) {
+        return true;
+    }
+
+    /**
+     * Counts a login attempt of the user against the rate limits, before its password is checked.
+     *
+     * @return false if the user tries too often, the login is refused then
+     */
+    default boolean admitLogin(String username) {
+        return true;
+    }
+
+    /**
+     * Counts a publish of the connection on the channel against the rate limits. Over a limit,
+     * the publish is either refused or let through while the connection's reads pause long enough
+     * to bring it back within the rate.
+     *
+     * @return false if the publish is refused
+     */
+    default boolean admitPublish(int connectionId, String channel) {
+        return true;
+    }
+
     void addClient(int connectionId, ConnectionHandler<T> handler);
 
 }
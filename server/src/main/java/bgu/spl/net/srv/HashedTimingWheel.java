@@ -0,0 +1,126 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: timeouts are kept in a ring of buckets, one bucket per tick, so scheduling
+ * and cancelling are O(1) and advancing only looks at the buckets of the ticks that passed.
+ * Timeouts further away than one turn of the wheel wait in their bucket for the right number of rounds.
+ * Not thread safe, it is owned by a single thread (a reactor loop) that schedules and advances it.
+ */
+public class HashedTimingWheel {
+
+    private final long tickNanos;
+    private final Timeout[] buckets; // Head of a doubly linked list of timeouts per bucket
+    private final int mask;
+    private final long startNanos;
+    private long tick = 0; // The next tick to expire
+    private int size = 0;
+
+    /**
+     * @param tickDuration the resolution of the wheel, timeouts fire at most one tick late
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tick duration and ticks per wheel must be positive");
+        }
+        int length = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Timeout[Math.max(length, 1)];
+        this.mask = buckets.length - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedules the task to run on the first {@link #advance(long)} at least delay after now.
+     */
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        long deadline = System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+        long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, tick);
+        Timeout timeout = new Timeout(task, (deadlineTick - tick) / buckets.length);
+        link(timeout, (int) (deadlineTick & mask));
+        return timeout;
+    }
+
+    /**
+     * Runs every timeout whose deadline is not after the given time.
+     *
+     * @param nowNanos a value of {@link System#nanoTime()}
+     */
+    public void advance(long nowNanos) {
+        long lastTick = (nowNanos - startNanos) / tickNanos;
+        while (tick <= lastTick) {
+            int index = (int) (tick++ & mask); // Timeouts scheduled by the tasks below land on later ticks
+            Timeout timeout = buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    unlink(timeout);
+                    timeout.task.run();
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * @return the tick duration in milliseconds, how long the owner may wait between two advances
+     */
+    public long tickMillis() {
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(tickNanos), 1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void link(Timeout timeout, int index) {
+        timeout.bucket = index;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    public final class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        /**
+         * Removes the timeout from the wheel, has no effect if it already ran or was cancelled.
+         */
+        public void cancel() {
+            if (bucket >= 0) {
+                unlink(this);
+            }
+        }
+    }
+}
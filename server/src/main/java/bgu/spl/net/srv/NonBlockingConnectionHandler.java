@@ -7,28 +7,94 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 //
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_GATHER_BUFFERS = 64; // iovecs handed to a single write call
+    private static final int MAX_GATHER_BYTES = 1 << 16; //64k per write call
+    private static final int COALESCE_THRESHOLD = 1 << 10; //parts smaller than 1k are copied into a pooled buffer
+    public static final long DEFAULT_HIGH_WATERMARK = 1 << 20; //1M queued for writing
+    public static final long DEFAULT_LOW_WATERMARK = 1 << 18; //256k queued for writing
+    private static final int MAX_PENDING_READS = 4; // Reads waiting in the mailbox before we stop reading ahead
+    private static final ByteBuffer HEART_BEAT = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundFrame> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong(0); // Bytes in writeQueue
+    private final Map<String, OutboundFrame> pendingByKey = new ConcurrentHashMap<>(); // Keyed frames in writeQueue, by channel and key
+    private final long highWatermark;
+    private final long lowWatermark;
+    private volatile boolean saturated = false;
+    private volatile boolean closeAfterWrites = false;
+    private volatile OutboundFrame finalFrame; // Set by sendAndClose, the connection closes once it is written
+    private boolean finalFrameTaken = false; // Only used by the loop thread
+    private final Set<NonBlockingConnectionHandler<?>> heldPublishers = ConcurrentHashMap.newKeySet(); // Waiting for us to drain
+    private final Queue<Runnable> drainedTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readHolds = new AtomicInteger(0); // Saturated connections this one waits for
+    private final AtomicInteger pendingReads = new AtomicInteger(0); // Read buffers not processed yet
+    private final AtomicBoolean interestUpdateQueued = new AtomicBoolean(false); // Waiting in the loop's update queue
+    private volatile boolean writeArmed = false; // OP_WRITE is (about to be) set, so new frames need no update
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final ReactorLoop<T> reactor;
     private final Connections<T> connections;
     private int connectionId;
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox(); // Read tasks of this connection
+    // Confined to the actor: messages read while processing is paused, processed in order when it resumes
+    private final ArrayDeque<T> deferred = new ArrayDeque<>();
+    private boolean paused = false;
+
+    // Written by the selector thread only: buffers taken off the write queue and not fully written yet
+    private ByteBuffer[] inFlight = new ByteBuffer[MAX_GATHER_BUFFERS];
+    private int inFlightStart = 0;
+    private int inFlightCount = 0;
+    private ByteBuffer[] coalesceBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    private int coalesceCount = 0;
+    private OutboundFrame carry = null; // Taken off the queue but did not fit in the last gathering write
+    private long lastReadNanos = System.nanoTime();
+    private long lastWriteNanos = System.nanoTime();
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor,
+            ReactorLoop<T> reactor,
             Connections<T> connections,
             int connectionId) {
+        this(reader, protocol, chan, reactor, connections, connectionId, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+    }
+
+    /**
+     * @param highWatermark queued bytes above which this connection counts as a slow consumer
+     * @param lowWatermark queued bytes under which it stops counting as one
+     */
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            ReactorLoop<T> reactor,
+            Connections<T> connections,
+            int connectionId,
+            long highWatermark,
+            long lowWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("the low watermark must not be above the high watermark");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
@@ -47,20 +113,28 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        lastReadNanos = System.nanoTime();
 
         if (success) {
             buf.flip();
+            if (pendingReads.incrementAndGet() == MAX_PENDING_READS) {
+                reactor.updateInterestedOps(this); // Stop reading ahead, held publishers must really stop
+            }
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            System.out.println(nextMessage.toString());
+                    for (T nextMessage : encdec.decode(buf)) {
+                        System.out.println(nextMessage.toString());
+                        if (paused) {
+                            deferred.add(nextMessage);
+                        } else {
                             protocol.process(nextMessage);
                         }
                     }
                 } finally {
                     releaseBuffer(buf);
+                    if (pendingReads.decrementAndGet() == MAX_PENDING_READS - 1) {
+                        reactor.updateInterestedOps(this);
+                    }
                 }
             };
         } else {
@@ -76,6 +150,10 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            releaseHeldPublishers(); // Nothing left to wait for
+            drainedTasks.clear();
+            connections.disconnect(connectionId); // Do not leave a dead client in the clients and topics
         }
     }
 
@@ -84,25 +162,158 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+        try {
+            while (true) {
+                if (inFlightStart == inFlightCount) {
+                    releaseCoalesceBuffers();
+                    if (!fillInFlight()) {
+                        break;
+                    }
+                }
+                if (chan.write(inFlight, inFlightStart, inFlightCount - inFlightStart) > 0) {
+                    lastWriteNanos = System.nanoTime();
+                }
+                while (inFlightStart < inFlightCount && !inFlight[inFlightStart].hasRemaining()) {
+                    inFlight[inFlightStart++] = null;
+                }
+                if (inFlightStart < inFlightCount) {
+                    return; // The socket buffer is full, wait for the next OP_WRITE
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
+        } finally {
+            if (saturated && queuedBytes.get() <= lowWatermark) {
+                saturated = false;
+                releaseHeldPublishers();
+                runDrainedTasks();
             }
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        // Only past the final frame: the flag alone could be seen before that frame is even queued
+        if (protocol.shouldTerminate() || finalFrameTaken) close();
+        else reactor.updateInterestedOps(this);
+    }
+
+    /**
+     * Moves whole frames from the write queue into the in flight array, within the byte and buffer budget
+     * of a single gathering write. Small parts are copied together into pooled direct buffers, so many short
+     * frames leave in a few large buffers instead of one buffer each.
+     *
+     * @return true if there is something to write
+     */
+    private boolean fillInFlight() {
+        inFlightStart = 0;
+        inFlightCount = 0;
+        int bytes = 0;
+        ByteBuffer coalesce = null;
+        OutboundFrame next;
+        while (bytes < MAX_GATHER_BYTES && (next = takeNext()) != null) {
+            ByteBuffer[] frame = next.getParts();
+            if (inFlightCount > 0 && inFlightCount + frame.length > MAX_GATHER_BUFFERS) {
+                carry = next;
+                break;
+            }
+            ensureInFlightCapacity(inFlightCount + frame.length);
+            for (ByteBuffer part : frame) {
+                int remaining = part.remaining();
+                bytes += remaining;
+                if (remaining >= COALESCE_THRESHOLD) {
+                    if (coalesce != null) {
+                        coalesce.flip();
+                        coalesce = null;
+                    }
+                    inFlight[inFlightCount++] = part;
+                    continue;
+                }
+                if (coalesce != null && coalesce.remaining() < remaining) {
+                    coalesce.flip();
+                    coalesce = null;
+                }
+                if (coalesce == null) {
+                    coalesce = leaseBuffer();
+                    coalesceBuffers[coalesceCount++] = coalesce;
+                    inFlight[inFlightCount++] = coalesce;
+                }
+                coalesce.put(part);
+            }
+        }
+        if (coalesce != null) {
+            coalesce.flip();
+        }
+        return inFlightCount > 0;
+    }
+
+    private OutboundFrame takeNext() {
+        OutboundFrame next = carry;
+        if (next != null) {
+            carry = null;
+            return next;
+        }
+        next = writeQueue.poll();
+        if (next != null) {
+            queuedBytes.addAndGet(-claim(next));
+            if (next == finalFrame) {
+                finalFrameTaken = true;
+            }
         }
+        return next;
+    }
+
+    /**
+     * Takes a frame that just left the write queue out of reach of newer frames with its key.
+     *
+     * @return its size, final from now on
+     */
+    private int claim(OutboundFrame frame) {
+        if (frame.getKey() == null) {
+            return frame.size();
+        }
+        synchronized (frame) {
+            frame.claim();
+            pendingByKey.remove(pendingKey(frame), frame);
+            return frame.size();
+        }
+    }
+
+    /**
+     * Puts a keyed frame in the place of the one with its key still waiting in the write queue, if there is one.
+     * Whatever the policy: the frame replaced would only have gone out to be overwritten by this one.
+     */
+    private boolean replacePending(OutboundFrame frame) {
+        OutboundFrame pending = pendingByKey.get(pendingKey(frame));
+        if (pending == null) {
+            return false;
+        }
+        synchronized (pending) {
+            if (pending.isClaimed()) {
+                return false; // The writer took it in the meantime, this one goes after it
+            }
+            queuedBytes.addAndGet(frame.size() - pending.size());
+            pending.replaceWith(frame);
+        }
+        return true;
+    }
+
+    private static String pendingKey(OutboundFrame frame) {
+        return frame.getChannel() + '\n' + frame.getKey();
+    }
+
+    private void ensureInFlightCapacity(int capacity) {
+        if (capacity > inFlight.length) {
+            inFlight = Arrays.copyOf(inFlight, capacity);
+            coalesceBuffers = Arrays.copyOf(coalesceBuffers, capacity);
+        }
+    }
+
+    private void releaseCoalesceBuffers() {
+        for (int i = 0; i < coalesceCount; i++) {
+            releaseBuffer(coalesceBuffers[i]);
+            coalesceBuffers[i] = null;
+        }
+        coalesceCount = 0;
     }
 
     private static ByteBuffer leaseBuffer() {
@@ -118,13 +329,246 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     private static void releaseBuffer(ByteBuffer buff) {
         BUFFER_POOL.add(buff);
     }
+    /*package*/ ActorThreadPool.Mailbox getMailbox() {
+        return mailbox;
+    }
+
     public MessagingProtocol<T> getProtocol() {
         return protocol;
     }
 
+    /*package*/ int interestOps() {
+        boolean pendingWrites = inFlightStart < inFlightCount || carry != null || !writeQueue.isEmpty();
+        boolean reading = readHolds.get() == 0 && pendingReads.get() < MAX_PENDING_READS;
+        return (reading ? SelectionKey.OP_READ : 0) | (pendingWrites ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Called by the loop right before it sets the key's interest ops to the returned value.
+     * The flag is cleared before looking at the queue: a sender that still sees it set is then sure
+     * its frame was already in the queue when we looked.
+     */
+    /*package*/ int prepareInterestOps() {
+        writeArmed = false;
+        int ops = interestOps();
+        writeArmed = (ops & SelectionKey.OP_WRITE) != 0;
+        return ops;
+    }
+
+    /**
+     * @return true if the caller must queue this handler for an interest update, false if it is already queued
+     */
+    /*package*/ boolean requestInterestUpdate() {
+        return interestUpdateQueued.compareAndSet(false, true);
+    }
+
+    /*package*/ void clearInterestUpdate() {
+        interestUpdateQueued.set(false);
+    }
+
+    /*package*/ SocketChannel getChannel() {
+        return chan;
+    }
+
     @Override
     public void send(T msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        enqueue(new OutboundFrame(null, ByteBuffer.wrap(encdec.encode(msg))));
+    }
+
+    @Override
+    public boolean sendEncoded(OutboundFrame frame, SlowConsumerPolicy policy) {
+        if (closeAfterWrites) {
+            return false;
+        }
+        if (frame.getKey() != null && replacePending(frame)) {
+            return true;
+        }
+        if (!saturated) {
+            enqueue(frame);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                enqueue(frame);
+                dropOldestPublished(frame);
+                return true;
+            case CONFLATE:
+                dropPublished(frame.getChannel());
+                enqueue(frame);
+                return true;
+            default: // DROP_NEWEST and DISCONNECT
+                return false;
+        }
+    }
+
+    @Override
+    public void sendAndClose(T msg) {
+        OutboundFrame last = new OutboundFrame(null, ByteBuffer.wrap(encdec.encode(msg)));
+        finalFrame = last;
+        closeAfterWrites = true;
+        OutboundFrame dropped;
+        while ((dropped = writeQueue.poll()) != null) {
+            queuedBytes.addAndGet(-claim(dropped));
+        }
+        enqueue(last);
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    @Override
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public void holdUntilDrained(ConnectionHandler<?> publisher) {
+        if (!(publisher instanceof NonBlockingConnectionHandler)) {
+            return;
+        }
+        NonBlockingConnectionHandler<?> held = (NonBlockingConnectionHandler<?>) publisher;
+        if (heldPublishers.add(held)) {
+            held.suspendReads();
+            // We may have drained between the caller's check and the add, then nobody else would release it
+            if (!saturated && heldPublishers.remove(held)) {
+                held.resumeReads();
+            }
+        }
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        drainedTasks.add(task);
+        if (!saturated) { // Same race as in holdUntilDrained
+            runDrainedTasks();
+        }
+    }
+
+    private void runDrainedTasks() {
+        // Only the tasks already waiting, one that saturates us again waits for the next drain
+        Runnable task;
+        for (int waiting = drainedTasks.size(); waiting > 0 && (task = drainedTasks.poll()) != null; waiting--) {
+            task.run();
+        }
+    }
+
+    @Override
+    public boolean startHeartBeat(long sendEvery, long expectWithin) {
+        reactor.execute(() -> {
+            if (sendEvery > 0) {
+                sendHeartBeat(TimeUnit.MILLISECONDS.toNanos(sendEvery));
+            }
+            if (expectWithin > 0) {
+                checkIdle(TimeUnit.MILLISECONDS.toNanos(expectWithin));
+            }
+        });
+        return true;
+    }
+
+    // Runs on the selector thread: one timer per direction, rescheduled from the last activity rather than on every read or write
+    private void sendHeartBeat(long everyNanos) {
+        if (isClosed()) {
+            return;
+        }
+        long idle = System.nanoTime() - lastWriteNanos;
+        if (idle >= everyNanos && (interestOps() & SelectionKey.OP_WRITE) == 0) {
+            enqueue(new OutboundFrame(null, HEART_BEAT.duplicate()));
+            idle = 0;
+        }
+        reactor.schedule(everyNanos - idle, TimeUnit.NANOSECONDS, () -> sendHeartBeat(everyNanos));
+    }
+
+    private void checkIdle(long withinNanos) {
+        if (isClosed()) {
+            return;
+        }
+        long idle = System.nanoTime() - lastReadNanos;
+        if (idle >= withinNanos) {
+            close(); // The peer is gone without closing its side
+            return;
+        }
+        reactor.schedule(withinNanos - idle, TimeUnit.NANOSECONDS, () -> checkIdle(withinNanos));
+    }
+
+    private void enqueue(OutboundFrame frame) {
+        if (frame.getKey() != null) {
+            pendingByKey.put(pendingKey(frame), frame);
+        }
+        writeQueue.add(frame);
+        if (queuedBytes.addAndGet(frame.size()) > highWatermark) {
+            saturated = true;
+        }
+        if (!writeArmed) {
+            reactor.updateInterestedOps(this);
+        }
+    }
+
+    // Only published messages are dropped, replies such as RECEIPT or ERROR always go out
+    private void dropOldestPublished(OutboundFrame keep) {
+        Iterator<OutboundFrame> it = writeQueue.iterator();
+        while (queuedBytes.get() > highWatermark && it.hasNext()) {
+            OutboundFrame queued = it.next();
+            if (queued != keep && queued.getChannel() != null && writeQueue.remove(queued)) {
+                queuedBytes.addAndGet(-claim(queued));
+            }
+        }
+    }
+
+    private void dropPublished(String channel) {
+        for (OutboundFrame queued : writeQueue) {
+            if (channel.equals(queued.getChannel()) && writeQueue.remove(queued)) {
+                queuedBytes.addAndGet(-claim(queued));
+            }
+        }
+    }
+
+    @Override
+    public void suspendReads() {
+        readHolds.incrementAndGet();
+        reactor.updateInterestedOps(this);
+    }
+
+    @Override
+    public void resumeReads() {
+        readHolds.decrementAndGet();
+        reactor.updateInterestedOps(this);
+    }
+
+    /**
+     * Must be called by the protocol while it processes a message: the messages after it, read already or not,
+     * wait until the delay is over.
+     */
+    @Override
+    public void pauseReads(long delay, TimeUnit unit) {
+        if (paused) {
+            return;
+        }
+        paused = true;
+        suspendReads();
+        reactor.execute(() -> reactor.schedule(delay, unit, () -> reactor.submit(this, this::unpause)));
+    }
+
+    // On the actor, after the read tasks that came in the meantime
+    private void unpause() {
+        paused = false;
+        if (isClosed()) {
+            deferred.clear();
+            return;
+        }
+        T message;
+        while (!paused && (message = deferred.poll()) != null) {
+            protocol.process(message); // May pause again, the rest then keeps waiting
+        }
+        resumeReads();
+    }
+
+    private void releaseHeldPublishers() {
+        for (NonBlockingConnectionHandler<?> held : heldPublishers) {
+            if (heldPublishers.remove(held)) {
+                held.resumeReads();
+            }
+        }
     }
 }
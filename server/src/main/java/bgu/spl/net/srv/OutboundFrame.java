@@ -0,0 +1,86 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded message waiting in a connection's write queue, kept whole so that slow consumer
+ * policies can drop or replace it without ever cutting a message in the middle.
+ */
+public class OutboundFrame {
+
+    private final String channel;
+    private final String key; // Null unless a newer frame with the same key may replace this one while it waits
+    private ByteBuffer[] parts; // Keyed frames: guarded by the frame, replaced until a writer claims it
+    private int size;
+    private boolean claimed = false;
+
+    /**
+     * @param channel the channel the message was published on, or null for a direct message
+     * @param parts the encoded message, only the remaining bytes of each part are written
+     */
+    public OutboundFrame(String channel, ByteBuffer... parts) {
+        this(channel, null, parts);
+    }
+
+    private OutboundFrame(String channel, String key, ByteBuffer... parts) {
+        this.channel = channel;
+        this.key = key;
+        this.parts = parts;
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        this.size = size;
+    }
+
+    /**
+     * A message only the newest of which matters: while it waits in a write queue, a newer message
+     * of the channel with the same key takes its place in the queue instead of being queued after it.
+     */
+    public static OutboundFrame conflatable(String channel, String key, ByteBuffer... parts) {
+        if (channel == null || key == null) {
+            throw new IllegalArgumentException("a conflatable frame needs a channel and a key");
+        }
+        return new OutboundFrame(channel, key, parts);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // The three below are called holding the frame's lock
+
+    boolean isClaimed() {
+        return claimed;
+    }
+
+    /**
+     * Takes the content of a newer frame with the same key.
+     */
+    void replaceWith(OutboundFrame newer) {
+        parts = newer.parts;
+        size = newer.size;
+    }
+
+    /**
+     * Marks the frame as taken out of the write queue, its content is final from now on.
+     */
+    void claim() {
+        claimed = true;
+    }
+
+    public ByteBuffer[] getParts() {
+        return parts;
+    }
+
+    /**
+     * @return the number of bytes this frame adds to a write queue
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,94 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets, one per key (a user, an address, a destination...), each holding up to burst tokens
+ * and refilled at a steady rate. A bucket is a single long, the time at which it will be full again
+ * (the generic cell rate algorithm), updated by compare-and-set: nothing locks, and the refill is computed
+ * from the clock when the key is used, so idle keys cost no timer and no work.
+ */
+public class RateLimiter {
+
+    private static final int MAX_KEYS = 100000; // Past it the buckets that are full again are forgotten
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final long interval; // Nanoseconds per token
+    private final long tolerance; // How far ahead of now a bucket may be full again and still have a token
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param perSecond tokens added to each bucket per second
+     * @param burst tokens a bucket holds, so many acquisitions in a row pass after an idle period
+     */
+    public RateLimiter(double perSecond, int burst) {
+        if (!(perSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("the rate and the burst must be positive");
+        }
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * Takes a token from the key's bucket if it has one.
+     *
+     * @return 0 if it had, else the nanoseconds until it has one
+     */
+    public long tryAcquire(String key) {
+        return take(key, false);
+    }
+
+    /**
+     * Takes a token from the key's bucket, borrowing it from the future if the bucket is empty:
+     * each acquisition over the rate pushes the next ones further.
+     *
+     * @return the nanoseconds the caller should wait to stay within the rate, 0 if none
+     */
+    public long acquire(String key) {
+        return take(key, true);
+    }
+
+    private long take(String key, boolean borrow) {
+        AtomicLong bucket = bucketOf(key);
+        while (true) {
+            long now = System.nanoTime();
+            long full = bucket.get();
+            long start = full - now > 0 ? full : now; // A bucket full in the past is just full
+            long wait = start - now - tolerance;
+            if (wait > 0 && !borrow) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, start + interval)) {
+                return Math.max(wait, 0);
+            }
+        }
+    }
+
+    private AtomicLong bucketOf(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= MAX_KEYS) {
+            forgetFull();
+        }
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+    }
+
+    /**
+     * Forgets the buckets that are full again, a new one would be the same. A thread still using one it just
+     * looked up may take a token nobody sees, a small leniency for a bounded map. At most once per sweep interval,
+     * so a map full of busy keys does not cost a scan per new key.
+     */
+    private void forgetFull() {
+        long now = System.nanoTime();
+        long next = nextSweep.get();
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
@@ -4,36 +4,93 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 import bgu.spl.net.srv.Connections;
 //
 public class Reactor<T> implements Server<T> {
 
+    /**
+     * How the acceptor picks the I/O loop that owns a new connection.
+     */
+    public enum LoopBalancing {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
     private final Connections<T> connections;
+    private final int numLoops;
+    private final LoopBalancing balancing;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final int maxPoolBacklog; // 0 to never shed connections
+    private final RateLimiter acceptLimiter; // Per source address, null when accepts are not limited
     private int connectionsIdCnt = 0;
+    private int nextLoop = 0;
+
+    private ReactorLoop<T>[] loops;
+    private ServerSocketChannel serverSock;
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            Connections<T> connections) {
+        this(numThreads, 1, LoopBalancing.ROUND_ROBIN,
+                NonBlockingConnectionHandler.DEFAULT_HIGH_WATERMARK, NonBlockingConnectionHandler.DEFAULT_LOW_WATERMARK,
+                port, protocolFactory, readerFactory, connections);
+    }
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    public Reactor(
+            int numThreads,
+            int numLoops,
+            LoopBalancing balancing,
+            long highWatermark,
+            long lowWatermark,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            Connections<T> connections) {
+        this(numThreads, numLoops, balancing, highWatermark, lowWatermark, 0, null,
+                port, protocolFactory, readerFactory, connections);
+    }
 
+    /**
+     * @param maxPoolBacklog actors waiting for a thread above which new connections are closed right away,
+     *                       0 to accept them whatever the load
+     * @param acceptLimiter connections accepted per source address, null for no limit
+     */
     public Reactor(
             int numThreads,
+            int numLoops,
+            LoopBalancing balancing,
+            long highWatermark,
+            long lowWatermark,
+            int maxPoolBacklog,
+            RateLimiter acceptLimiter,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory,
             Connections<T> connections) {
 
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("a reactor needs at least one I/O loop");
+        }
         this.pool = new ActorThreadPool(numThreads);
+        this.numLoops = numLoops;
+        this.balancing = balancing;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxPoolBacklog = maxPoolBacklog;
+        this.acceptLimiter = acceptLimiter;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -41,101 +98,112 @@ public class Reactor<T> implements Server<T> {
     }
 
     @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            this.serverSock = serverSock; //just to be able to close
 
-            this.selector = selector; //just to be able to close
+            loops = new ReactorLoop[numLoops];
+            for (int i = 0; i < numLoops; i++) {
+                loops[i] = new ReactorLoop<>(i, pool);
+                new Thread(loops[i], loops[i].name()).start();
+            }
 
+            // The serving thread is the acceptor, all reads and writes happen on the loops
             serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-			System.out.println("Server started");
+            System.out.println("Server started");
 
             while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
+                handleAccept(serverSock.accept());
             }
 
-        } catch (ClosedSelectorException ex) {
+        } catch (ClosedChannelException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
         }
 
+        closeLoops();
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
+    private void handleAccept(SocketChannel clientChan) throws IOException {
+        if (!admit(clientChan)) {
+            clientChan.close();
+            return;
         }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
         clientChan.configureBlocking(false);
         int connectionId = connectionsIdCnt++;
+        ReactorLoop<T> loop = chooseLoop();
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this,
+                loop,
                 connections,
-                connectionId);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+                connectionId,
+                highWatermark,
+                lowWatermark);
+        loop.register(clientChan, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+    /**
+     * Sheds a connection before it costs anything more than the accept: while the actors are too far behind,
+     * a new client would only add to everyone's latency, and a source reconnecting too fast gets turned away.
+     */
+    private boolean admit(SocketChannel clientChan) throws IOException {
+        if (maxPoolBacklog > 0 && pool.backlog() > maxPoolBacklog) {
+            return false;
+        }
+        if (acceptLimiter == null) {
+            return true;
         }
+        SocketAddress address = clientChan.getRemoteAddress();
+        String source = address instanceof InetSocketAddress
+                ? ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+        return acceptLimiter.tryAcquire(source) == 0;
+    }
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    private ReactorLoop<T> chooseLoop() {
+        if (balancing == LoopBalancing.LEAST_LOADED) {
+            ReactorLoop<T> best = loops[0];
+            for (int i = 1; i < loops.length; i++) {
+                if (loops[i].load() < best.load()) {
+                    best = loops[i];
+                }
+            }
+            return best;
         }
+        ReactorLoop<T> loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        if (loops == null) {
+            return;
+        }
+        for (ReactorLoop<T> loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (serverSock != null) {
+            serverSock.close();
+        }
+        closeLoops();
     }
 
 }
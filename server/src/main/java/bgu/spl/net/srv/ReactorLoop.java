@@ -0,0 +1,188 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One I/O event loop of the reactor: a selector, the thread that runs it and the tasks
+ * other threads hand to that thread. Every connection is owned by exactly one loop for its whole life.
+ */
+public class ReactorLoop<T> implements Runnable {
+
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_TICKS_PER_WHEEL = 512; // One turn of the wheel is about 51 seconds
+
+    private final int index;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NonBlockingConnectionHandler<T>> interestUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false); // At most one wakeup per loop iteration
+    private final AtomicInteger pendingRegistrations = new AtomicInteger(0);
+    private final HashedTimingWheel timers = new HashedTimingWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_TICKS_PER_WHEEL);
+    private volatile int registeredKeys = 0;
+    private Thread selectorThread;
+
+    /*package*/ ReactorLoop(int index, ActorThreadPool pool) throws IOException {
+        this.index = index;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(timers.tickMillis());
+                }
+                wakeupRequested.set(false); // Anything requested from now on needs a new wakeup
+                runSelectionThreadTasks();
+                applyInterestUpdates();
+                timers.advance(System.nanoTime());
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+                registeredKeys = selector.keys().size();
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of connections owned by this loop, including the ones still waiting to be registered
+     */
+    /*package*/ int load() {
+        return registeredKeys + pendingRegistrations.get();
+    }
+
+    /*package*/ String name() {
+        return "reactor-loop-" + index;
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop, it is registered for reads by the loop's own thread.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        pendingRegistrations.incrementAndGet();
+        selectorTasks.add(() -> {
+            pendingRegistrations.decrementAndGet();
+            try {
+                chan.register(selector, handler.prepareInterestOps(), handler);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                handler.close();
+            }
+        });
+        wakeup();
+    }
+
+    /**
+     * Runs the task on this loop's thread, right away if already on it.
+     */
+    /*package*/ void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            wakeup();
+        }
+    }
+
+    /**
+     * Runs the task as one of the handler's actor tasks, after those already in its mailbox.
+     */
+    /*package*/ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler.getMailbox(), task);
+    }
+
+    /**
+     * Schedules the task on this loop's timing wheel, must be called from the loop's thread.
+     */
+    /*package*/ HashedTimingWheel.Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        return timers.schedule(delay, unit, task);
+    }
+
+    /**
+     * Makes the handler's key follow its current state (reads held or not, writes pending or not).
+     * The ops are computed on the selector thread, so updates requested from several threads never apply stale values.
+     * From other threads a handler is queued at most once until the loop applies it, and the loop is woken
+     * at most once per iteration however many handlers changed.
+     */
+    /*package*/ void updateInterestedOps(NonBlockingConnectionHandler<T> handler) {
+        if (Thread.currentThread() == selectorThread) {
+            applyInterestedOps(handler);
+        } else if (handler.requestInterestUpdate()) {
+            interestUpdates.add(handler);
+            wakeup();
+        }
+    }
+
+    private void applyInterestUpdates() {
+        NonBlockingConnectionHandler<T> handler;
+        while ((handler = interestUpdates.poll()) != null) {
+            handler.clearInterestUpdate(); // Changes made while we apply are queued again
+            applyInterestedOps(handler);
+        }
+    }
+
+    private void applyInterestedOps(NonBlockingConnectionHandler<T> handler) {
+        SelectionKey key = handler.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(handler.prepareInterestOps());
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    /*package*/ void close() throws IOException {
+        selector.close();
+    }
+
+}
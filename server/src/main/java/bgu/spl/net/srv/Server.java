@@ -2,7 +2,9 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.impl.stomp.ConnectionsImpl;
 import java.io.Closeable;
+import java.lang.reflect.Method;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -24,8 +26,19 @@ public interface Server<T> extends Closeable {
             int port,
             Supplier<MessagingProtocol<T> > protocolFactory,
             Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+        return threadPerClient(port, protocolFactory, encoderDecoderFactory, new ConnectionsImpl<>());
+    }
+
+    /**
+     * Like the above, sharing the given connections between the clients
+     * @param connections The clients and subscriptions, configured by the caller
+     */
+    public static <T> Server<T>  threadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory, Connections<T> connections) {
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
             @Override
             protected void execute(BlockingConnectionHandler<T>  handler) {
                 new Thread(handler).start();
@@ -34,6 +47,44 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     * This function returns a new instance of a thread per client pattern server that runs every
+     * client on its own virtual thread, so blocking I/O does not hold a platform thread.
+     * Virtual threads need a Java 21 runtime (build with the java21 profile), the method is looked up
+     * reflectively so the default Java 8 build still compiles.
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param connections The clients and subscriptions, configured by the caller
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory, Connections<T> connections) {
+
+        final Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later", ex);
+        }
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                try {
+                    startVirtualThread.invoke(null, handler);
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException("cannot start a virtual thread", ex);
+                }
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -51,4 +102,50 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory,connections);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server with a dedicated acceptor
+     * and several I/O loops, each running its own selector
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of selector loops that share the connections
+     * @param balancing How a new connection is assigned to a loop
+     * @param highWatermark Bytes waiting to be written above which a connection is a slow consumer
+     * @param lowWatermark Bytes waiting to be written under which it stops being one
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            Reactor.LoopBalancing balancing,
+            long highWatermark,
+            long lowWatermark,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory, Connections<T> connections) {
+        return new Reactor<T>(nthreads, nloops, balancing, highWatermark, lowWatermark, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
+    /**
+     * Like the above, with admission control
+     * @param maxPoolBacklog Actors waiting for a thread above which new connections are closed right away, 0 for no limit
+     * @param acceptLimiter Connections accepted per source address, null for no limit
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            Reactor.LoopBalancing balancing,
+            long highWatermark,
+            long lowWatermark,
+            int maxPoolBacklog,
+            RateLimiter acceptLimiter,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory, Connections<T> connections) {
+        return new Reactor<T>(nthreads, nloops, balancing, highWatermark, lowWatermark, maxPoolBacklog, acceptLimiter,
+                port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
 }
@@ -0,0 +1,15 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a connection does with a published message once its write queue is above the high watermark.
+ */
+public enum SlowConsumerPolicy {
+    /** Queue the new message and drop the oldest queued messages until the queue is back under the mark */
+    DROP_OLDEST,
+    /** Drop the new message */
+    DROP_NEWEST,
+    /** Queue the new message and drop the queued messages of the same channel, keeping only the latest */
+    CONFLATE,
+    /** Drop the new message and close the connection with an ERROR */
+    DISCONNECT
+}